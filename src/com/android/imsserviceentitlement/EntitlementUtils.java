@@ -16,14 +16,11 @@
 
 package com.android.imsserviceentitlement;
 
-import static com.android.imsserviceentitlement.utils.Executors.getAsyncExecutor;
 import static com.android.imsserviceentitlement.utils.Executors.getDirectExecutor;
 
 import android.util.Log;
 
 import androidx.annotation.MainThread;
-import androidx.annotation.Nullable;
-import androidx.annotation.WorkerThread;
 
 import com.android.imsserviceentitlement.WfcActivationController.EntitlementResultCallback;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
@@ -49,7 +46,14 @@ public final class EntitlementUtils {
     public static void entitlementCheck(
             ImsEntitlementApi activationApi, EntitlementResultCallback callback) {
         sCheckEntitlementFuture =
-                Futures.submit(() -> getEntitlementStatus(activationApi), getAsyncExecutor());
+                Futures.catching(
+                        activationApi.checkEntitlementStatusAsync(),
+                        RuntimeException.class,
+                        e -> {
+                            Log.e(LOG_TAG, "getEntitlementStatus failed.", e);
+                            return null;
+                        },
+                        getDirectExecutor());
         Futures.addCallback(
                 sCheckEntitlementFuture,
                 new FutureCallback<EntitlementResult>() {
@@ -75,19 +79,4 @@ public final class EntitlementUtils {
             sCheckEntitlementFuture.cancel(true);
         }
     }
-
-    /**
-     * Gets entitlement status via carrier-specific entitlement API over network; returns null on
-     * network falure or other unexpected failure from entitlement API.
-     */
-    @WorkerThread
-    @Nullable
-    private static EntitlementResult getEntitlementStatus(ImsEntitlementApi activationApi) {
-        try {
-            return activationApi.checkEntitlementStatus();
-        } catch (RuntimeException e) {
-            Log.e("WfcActivationActivity", "getEntitlementStatus failed.", e);
-            return null;
-        }
-    }
 }
@@ -20,6 +20,7 @@ import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 import static java.time.temporal.ChronoUnit.SECONDS;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -28,6 +29,9 @@ import androidx.annotation.VisibleForTesting;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+import com.android.imsserviceentitlement.entitlement.EntitlementQueryHistory;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
 import com.android.imsserviceentitlement.fcm.FcmTokenStore;
 import com.android.imsserviceentitlement.fcm.FcmUtils;
@@ -44,11 +48,24 @@ import com.android.libraries.entitlement.ServiceEntitlementException;
 import com.android.libraries.entitlement.ServiceEntitlementRequest;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.time.Clock;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Implementation of the entitlement API. */
 public class ImsEntitlementApi {
@@ -57,15 +74,39 @@ public class ImsEntitlementApi {
     private static final int RESPONSE_RETRY_AFTER = 503;
     private static final int RESPONSE_TOKEN_EXPIRED = 511;
 
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    /** Max number of full authentications after the server rejected the token, per query. */
     private static final int AUTHENTICATION_RETRIES = 1;
+    /** Max number of retries after a recoverable network or server failure, per query. */
+    private static final int RECOVERABLE_RETRIES = 1;
+    /** Max duration of a query including its retries; no retry starts after it. */
+    private static final long QUERY_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    /** Delay before retrying a query that failed with a recoverable error. */
+    private static final long RECOVERABLE_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
 
     private final Context mContext;
     private final int mSubId;
     private final ServiceEntitlement mServiceEntitlement;
     private final EntitlementConfiguration mLastEntitlementConfiguration;
+    private final EntitlementLatencyStats mLatencyStats;
+    private final long mRecoverableRetryDelayMillis;
 
-    private int mRetryFullAuthenticationCount = AUTHENTICATION_RETRIES;
     private boolean mNeedsImsProvisioning;
+    /** The configuration stored by the last query of this instance, to be marked applied. */
+    @Nullable
+    private volatile XmlDoc mLastStoredXmlDoc;
+
+    /** Max number of queries running at once, across all subscriptions. */
+    private static final int MAX_CONCURRENT_QUERIES = 2;
+    private static final long QUERY_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /** Runs the queries of {@link #checkEntitlementStatusAsync}; idle threads are released. */
+    private static final ListeningExecutorService sQueryExecutor = createQueryExecutor();
+
+    /** The queries in flight, keyed by subscription id; shared by all instances. */
+    private static final ConcurrentHashMap<Integer, SettableFuture<EntitlementResult>>
+            sInFlightQueries = new ConcurrentHashMap<>();
 
     @VisibleForTesting
     static Clock sClock = Clock.systemUTC();
@@ -77,6 +118,8 @@ public class ImsEntitlementApi {
         this.mNeedsImsProvisioning = TelephonyUtils.isImsProvisioningRequired(context, subId);
         this.mServiceEntitlement = new ServiceEntitlement(context, carrierConfig, subId);
         this.mLastEntitlementConfiguration = new EntitlementConfiguration(context, subId);
+        this.mLatencyStats = EntitlementLatencyStats.getInstance(subId);
+        this.mRecoverableRetryDelayMillis = RECOVERABLE_RETRY_DELAY_MILLIS;
     }
 
     @VisibleForTesting
@@ -85,67 +128,195 @@ public class ImsEntitlementApi {
             int subId,
             boolean needsImsProvisioning,
             ServiceEntitlement serviceEntitlement,
-            EntitlementConfiguration lastEntitlementConfiguration) {
+            EntitlementConfiguration lastEntitlementConfiguration,
+            long recoverableRetryDelayMillis) {
         this.mContext = context;
         this.mSubId = subId;
         this.mNeedsImsProvisioning = needsImsProvisioning;
         this.mServiceEntitlement = serviceEntitlement;
         this.mLastEntitlementConfiguration = lastEntitlementConfiguration;
+        this.mLatencyStats = EntitlementLatencyStats.getInstance(subId);
+        this.mRecoverableRetryDelayMillis = recoverableRetryDelayMillis;
     }
 
     /**
      * Returns WFC entitlement check result from carrier API (over network), or {@code null} on
      * unrecoverable network issue or malformed server response. This is blocking call so should
      * not be called on main thread.
+     *
+     * <p>A query the server asks for full authentication, and a query failed by a recoverable
+     * network or server error, are retried within the {@link RetryBudget} of this call.
+     *
+     * <p>If a query for the same subscription is already in flight, e.g. from the polling job and
+     * the activation UI at once, waits for and returns the result of that query instead of
+     * starting another one. If the caller running that query is interrupted before it got a result,
+     * the waiting callers query again instead of sharing its cut-short result.
      */
     @Nullable
     public EntitlementResult checkEntitlementStatus() {
-        Log.d(TAG, "checkEntitlementStatus subId=" + mSubId);
-        ServiceEntitlementRequest.Builder requestBuilder = ServiceEntitlementRequest.builder();
-        mLastEntitlementConfiguration.getToken().ifPresent(
-                token -> requestBuilder.setAuthenticationToken(token));
-        FcmUtils.fetchFcmToken(mContext, mSubId);
-        requestBuilder.setNotificationToken(FcmTokenStore.getToken(mContext, mSubId));
-        // Set fake device info to avoid leaking
-        requestBuilder.setTerminalVendor("vendorX");
-        requestBuilder.setTerminalModel("modelY");
-        requestBuilder.setTerminalSoftwareVersion("versionZ");
-        requestBuilder.setAcceptContentType(ServiceEntitlementRequest.ACCEPT_CONTENT_TYPE_XML);
-        if (mNeedsImsProvisioning) {
-            mLastEntitlementConfiguration.getVersion().ifPresent(
-                    version -> requestBuilder.setConfigurationVersion(Integer.parseInt(version)));
+        while (true) {
+            SettableFuture<EntitlementResult> query = SettableFuture.create();
+            SettableFuture<EntitlementResult> inFlightQuery =
+                    sInFlightQueries.putIfAbsent(mSubId, query);
+            if (inFlightQuery == null) {
+                return runInFlightQuery(query);
+            }
+            Log.d(TAG, "checkEntitlementStatus subId=" + mSubId + " joins the in-flight query");
+            try {
+                return awaitInFlightQuery(inFlightQuery);
+            } catch (CancellationException e) {
+                Log.d(TAG, "In-flight query subId=" + mSubId + " was interrupted; query again");
+            }
         }
-        ServiceEntitlementRequest request = requestBuilder.build();
+    }
 
-        XmlDoc entitlementXmlDoc = null;
+    /**
+     * Runs the query registered as in flight and completes it for the waiting callers. The query
+     * is unregistered before completion, so a caller retrying a cancelled query doesn't find it.
+     */
+    @Nullable
+    private EntitlementResult runInFlightQuery(SettableFuture<EntitlementResult> query) {
+        try {
+            EntitlementResult result = doCheckEntitlementStatus();
+            sInFlightQueries.remove(mSubId, query);
+            if (result == null && Thread.currentThread().isInterrupted()) {
+                // The query was cut short only for this caller; the waiting callers query again.
+                query.cancel(/* mayInterruptIfRunning= */ false);
+            } else {
+                query.set(result);
+            }
+            return result;
+        } catch (Throwable e) {
+            query.setException(e);
+            throw e;
+        } finally {
+            // Also on an Error, otherwise later callers would wait for this query forever.
+            sInFlightQueries.remove(mSubId, query);
+        }
+    }
+
+    /**
+     * Marks the configuration of the last {@link #checkEntitlementStatus} of this instance as
+     * applied, so the following results report it unchanged until it changes again. Does nothing
+     * if the result came from a query of another caller.
+     */
+    public void markConfigurationApplied() {
+        XmlDoc xmlDoc = mLastStoredXmlDoc;
+        if (xmlDoc != null) {
+            mLastEntitlementConfiguration.markApplied(xmlDoc);
+        }
+    }
+
+    /**
+     * Same as {@link #checkEntitlementStatus} but runs on the bounded executor of this API. The
+     * future fails if the query throws. Cancelling the future with {@code mayInterruptIfRunning}
+     * interrupts the query, which stops before its next network attempt or retry delay.
+     */
+    public ListenableFuture<EntitlementResult> checkEntitlementStatusAsync() {
+        return sQueryExecutor.submit(this::checkEntitlementStatus);
+    }
+
+    private static ListeningExecutorService createQueryExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        MAX_CONCURRENT_QUERIES,
+                        MAX_CONCURRENT_QUERIES,
+                        QUERY_THREAD_KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        runnable -> new Thread(runnable, "ImsEntitlementQuery"));
+        executor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(executor);
+    }
+
+    @Nullable
+    private EntitlementResult awaitInFlightQuery(Future<EntitlementResult> inFlightQuery) {
+        try {
+            return inFlightQuery.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            Log.e(TAG, "In-flight query failed", e);
+            return null;
+        }
+    }
 
+    @Nullable
+    private EntitlementResult doCheckEntitlementStatus() {
+        Log.d(TAG, "checkEntitlementStatus subId=" + mSubId);
+        QueryTrace trace = new QueryTrace();
+        String outcome = "exception";
         try {
-            String rawXml = mServiceEntitlement.queryEntitlementStatus(
-                    mNeedsImsProvisioning
-                            ? ImmutableList.of(
-                            ServiceEntitlement.APP_VOWIFI,
-                            ServiceEntitlement.APP_VOLTE,
-                            ServiceEntitlement.APP_SMSOIP)
-                            : ImmutableList.of(ServiceEntitlement.APP_VOWIFI),
-                    request);
-            entitlementXmlDoc = new XmlDoc(rawXml);
-            mLastEntitlementConfiguration.update(rawXml);
-            // Reset the retry count if no exception from queryEntitlementStatus()
-            mRetryFullAuthenticationCount = AUTHENTICATION_RETRIES;
-        } catch (ServiceEntitlementException e) {
-            if (e.getErrorCode() == ServiceEntitlementException.ERROR_HTTP_STATUS_NOT_SUCCESS) {
-                if (e.getHttpStatus() == RESPONSE_TOKEN_EXPIRED) {
-                    if (mRetryFullAuthenticationCount <= 0) {
-                        Log.d(TAG, "Ran out of the retry count, stop query status.");
+            EntitlementResult result = queryWithRetries(trace);
+            outcome = describeOutcome(result);
+            return result;
+        } finally {
+            EntitlementQueryHistory.getInstance().add(
+                    EntitlementQueryHistory.Record.create(
+                            trace.mStartTimeMillis,
+                            mSubId,
+                            trace.mAttempts,
+                            outcome,
+                            ImmutableMap.copyOf(trace.mPhaseMillis)));
+        }
+    }
+
+    @Nullable
+    private EntitlementResult queryWithRetries(QueryTrace trace) {
+        // Don't wait for FCM, the token is sent by a follow-up query once available.
+        long fcmTokenStartMillis = SystemClock.elapsedRealtime();
+        FcmUtils.fetchFcmTokenAsync(mContext, mSubId);
+        recordPhase(trace, Phase.FCM_TOKEN, fcmTokenStartMillis);
+        RetryBudget retryBudget = new RetryBudget(SystemClock.elapsedRealtime());
+        for (int attempt = 1; ; attempt++) {
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(TAG, "Query cancelled before attempt " + attempt);
+                return null;
+            }
+            long attemptStartMillis = SystemClock.elapsedRealtime();
+            trace.mAttempts = attempt;
+            try {
+                String rawXml = mServiceEntitlement.queryEntitlementStatus(
+                        mNeedsImsProvisioning
+                                ? ImmutableList.of(
+                                ServiceEntitlement.APP_VOWIFI,
+                                ServiceEntitlement.APP_VOLTE,
+                                ServiceEntitlement.APP_SMSOIP)
+                                : ImmutableList.of(ServiceEntitlement.APP_VOWIFI),
+                        buildRequest());
+                long parseStartMillis = recordPhase(trace, Phase.QUERY, attemptStartMillis);
+                Log.d(TAG, "Attempt " + attempt + " done in "
+                        + (parseStartMillis - attemptStartMillis) + "ms");
+                XmlDoc entitlementXmlDoc = new XmlDoc(rawXml);
+                long storeStartMillis = recordPhase(trace, Phase.PARSE, parseStartMillis);
+                boolean configurationChanged =
+                        mLastEntitlementConfiguration.update(rawXml, entitlementXmlDoc)
+                                || mLastEntitlementConfiguration.isApplyPending();
+                mLastStoredXmlDoc = entitlementXmlDoc;
+                recordPhase(trace, Phase.STORE, storeStartMillis);
+                return toEntitlementResult(entitlementXmlDoc, configurationChanged);
+            } catch (ServiceEntitlementException e) {
+                long attemptEndMillis = recordPhase(trace, Phase.QUERY, attemptStartMillis);
+                Log.d(TAG, "Attempt " + attempt + " failed in "
+                        + (attemptEndMillis - attemptStartMillis) + "ms");
+                if (isHttpStatus(e, RESPONSE_TOKEN_EXPIRED)) {
+                    if (!retryBudget.tryFullAuthentication(SystemClock.elapsedRealtime())) {
+                        Log.d(TAG, "Ran out of the retry budget, stop query status.");
                         return null;
                     }
                     Log.d(TAG, "Server asking for full authentication, retry the query.");
                     // Clean up the cached data and perform full authentication next query.
                     mLastEntitlementConfiguration.reset();
-                    mRetryFullAuthenticationCount--;
-                    return checkEntitlementStatus();
-                } else if (e.getHttpStatus() == RESPONSE_RETRY_AFTER && !TextUtils.isEmpty(
-                        e.getRetryAfter())) {
+                    continue;
+                } else if (isHttpStatus(e, RESPONSE_RETRY_AFTER)
+                        && !TextUtils.isEmpty(e.getRetryAfter())) {
                     // For handling the case of HTTP_UNAVAILABLE(503), client would perform the
                     // retry for the delay of Retry-After.
                     Log.d(TAG, "Server asking for retry. retryAfter = " + e.getRetryAfter());
@@ -153,11 +324,79 @@ public class ImsEntitlementApi {
                             .builder()
                             .setRetryAfterSeconds(parseDelaySecondsByRetryAfter(e.getRetryAfter()))
                             .build();
+                } else if (isRecoverable(e)
+                        && retryBudget.tryRecoverableRetry(
+                                SystemClock.elapsedRealtime() + mRecoverableRetryDelayMillis)) {
+                    Log.d(TAG, "Recoverable failure, retry the query. " + e);
+                    try {
+                        Thread.sleep(mRecoverableRetryDelayMillis);
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    continue;
                 }
+                Log.e(TAG, "queryEntitlementStatus failed", e);
+                return null;
             }
-            Log.e(TAG, "queryEntitlementStatus failed", e);
         }
-        return entitlementXmlDoc == null ? null : toEntitlementResult(entitlementXmlDoc);
+    }
+
+    /** Records {@code phase} started at {@code startMillis} as done now. Returns now. */
+    private long recordPhase(QueryTrace trace, Phase phase, long startMillis) {
+        long nowMillis = SystemClock.elapsedRealtime();
+        mLatencyStats.record(phase, nowMillis - startMillis);
+        trace.mPhaseMillis.merge(phase, nowMillis - startMillis, Long::sum);
+        return nowMillis;
+    }
+
+    /** Returns a short description of {@code result} for the history, without personal data. */
+    private static String describeOutcome(@Nullable EntitlementResult result) {
+        if (result == null) {
+            return "no result";
+        }
+        if (result.getRetryAfterSeconds() >= 0) {
+            return "retry after " + result.getRetryAfterSeconds() + "s";
+        }
+        return "vowifiEntitled=" + result.getVowifiStatus().vowifiEntitled()
+                + " volteActive=" + result.getVolteStatus().isActive()
+                + " smsoipActive=" + result.getSmsoveripStatus().isActive()
+                + " configurationChanged=" + result.isConfigurationChanged();
+    }
+
+    private ServiceEntitlementRequest buildRequest() {
+        ServiceEntitlementRequest.Builder requestBuilder = ServiceEntitlementRequest.builder();
+        mLastEntitlementConfiguration.getToken().ifPresent(
+                token -> requestBuilder.setAuthenticationToken(token));
+        requestBuilder.setNotificationToken(FcmTokenStore.getToken(mContext, mSubId));
+        // Set fake device info to avoid leaking
+        requestBuilder.setTerminalVendor("vendorX");
+        requestBuilder.setTerminalModel("modelY");
+        requestBuilder.setTerminalSoftwareVersion("versionZ");
+        requestBuilder.setAcceptContentType(ServiceEntitlementRequest.ACCEPT_CONTENT_TYPE_XML);
+        if (mNeedsImsProvisioning) {
+            mLastEntitlementConfiguration.getVersion().ifPresent(
+                    version -> requestBuilder.setConfigurationVersion(Integer.parseInt(version)));
+        }
+        return requestBuilder.build();
+    }
+
+    private static boolean isHttpStatus(ServiceEntitlementException e, int httpStatus) {
+        return e.getErrorCode() == ServiceEntitlementException.ERROR_HTTP_STATUS_NOT_SUCCESS
+                && e.getHttpStatus() == httpStatus;
+    }
+
+    /**
+     * Returns {@code true} if the query may succeed when retried right away: the connection
+     * failed (e.g. reset or timed out), or the server failed without asking for a delay.
+     */
+    private static boolean isRecoverable(ServiceEntitlementException e) {
+        if (e.getErrorCode() == ServiceEntitlementException.ERROR_SERVER_NOT_CONNECTABLE) {
+            return true;
+        }
+        return e.getErrorCode() == ServiceEntitlementException.ERROR_HTTP_STATUS_NOT_SUCCESS
+                && e.getHttpStatus() >= HTTP_SERVER_ERROR
+                && e.getHttpStatus() != RESPONSE_TOKEN_EXPIRED;
     }
 
     /**
@@ -180,20 +419,20 @@ public class ImsEntitlementApi {
         return -1;
     }
 
-    private EntitlementResult toEntitlementResult(XmlDoc doc) {
+    private EntitlementResult toEntitlementResult(XmlDoc doc, boolean configurationChanged) {
         EntitlementResult.Builder builder = EntitlementResult.builder();
         ClientBehavior clientBehavior = mLastEntitlementConfiguration.entitlementValidation();
 
         if (mNeedsImsProvisioning && isResetToDefault(clientBehavior)) {
             // keep the entitlement result in default value and reset the configs.
-            if (clientBehavior == ClientBehavior.NEEDS_TO_RESET
-                    || clientBehavior == ClientBehavior.UNKNOWN_BEHAVIOR) {
+            if (clientBehavior == ClientBehavior.NEEDS_TO_RESET) {
                 mLastEntitlementConfiguration.reset();
             } else {
                 mLastEntitlementConfiguration.resetConfigsExceptVers();
             }
         } else {
-            builder.setVowifiStatus(Ts43VowifiStatus.builder(doc).build())
+            builder.setConfigurationChanged(configurationChanged)
+                    .setVowifiStatus(Ts43VowifiStatus.builder(doc).build())
                     .setVolteStatus(Ts43VolteStatus.builder(doc).build())
                     .setSmsoveripStatus(Ts43SmsOverIpStatus.builder(doc).build());
             doc.get(
@@ -211,8 +450,7 @@ public class ImsEntitlementApi {
     }
 
     private boolean isResetToDefault(ClientBehavior clientBehavior) {
-        return clientBehavior == ClientBehavior.UNKNOWN_BEHAVIOR
-                || clientBehavior == ClientBehavior.NEEDS_TO_RESET
+        return clientBehavior == ClientBehavior.NEEDS_TO_RESET
                 || clientBehavior == ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS
                 || clientBehavior == ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON;
     }
@@ -221,4 +459,43 @@ public class ImsEntitlementApi {
         String entitlementServiceUrl = TelephonyUtils.getEntitlementServerUrl(context, mSubId);
         return CarrierConfig.builder().setServerUrl(entitlementServiceUrl).build();
     }
+
+    /** The attempts and phase durations of a single query, for the history. */
+    private static final class QueryTrace {
+        final long mStartTimeMillis = System.currentTimeMillis();
+        final EnumMap<Phase, Long> mPhaseMillis = new EnumMap<>(Phase.class);
+        int mAttempts;
+    }
+
+    /**
+     * The retries left to a single {@link #checkEntitlementStatus} call. Owned by the call, so
+     * concurrent or subsequent calls don't share it.
+     */
+    private static final class RetryBudget {
+        private final long mDeadlineMillis;
+        private int mAuthenticationRetries = AUTHENTICATION_RETRIES;
+        private int mRecoverableRetries = RECOVERABLE_RETRIES;
+
+        RetryBudget(long startMillis) {
+            mDeadlineMillis = startMillis + QUERY_DEADLINE_MILLIS;
+        }
+
+        /** Consumes a full authentication retry to start at {@code startMillis}, if any left. */
+        boolean tryFullAuthentication(long startMillis) {
+            if (mAuthenticationRetries <= 0 || startMillis > mDeadlineMillis) {
+                return false;
+            }
+            mAuthenticationRetries--;
+            return true;
+        }
+
+        /** Consumes a recoverable failure retry to start at {@code startMillis}, if any left. */
+        boolean tryRecoverableRetry(long startMillis) {
+            if (mRecoverableRetries <= 0 || startMillis > mDeadlineMillis) {
+                return false;
+            }
+            mRecoverableRetries--;
+            return true;
+        }
+    }
 }
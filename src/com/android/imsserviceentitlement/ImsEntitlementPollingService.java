@@ -28,12 +28,13 @@ import static com.android.imsserviceentitlement.ImsServiceEntitlementStatsLog.IM
 import static com.android.imsserviceentitlement.ImsServiceEntitlementStatsLog.IMS_SERVICE_ENTITLEMENT_UPDATED__SERVICE_TYPE__VOLTE;
 import static com.android.imsserviceentitlement.ImsServiceEntitlementStatsLog.IMS_SERVICE_ENTITLEMENT_UPDATED__SERVICE_TYPE__VOWIFI;
 
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
 import android.util.SparseArray;
@@ -44,12 +45,32 @@ import androidx.annotation.WorkerThread;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+import com.android.imsserviceentitlement.entitlement.EntitlementQueryHistory;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
+import com.android.imsserviceentitlement.entitlement.VersCharacteristic;
+import com.android.imsserviceentitlement.fcm.FcmTokenStore;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.ImsUtils;
+import com.android.imsserviceentitlement.utils.ProvisioningResult;
+import com.android.imsserviceentitlement.utils.ProvisioningResult.Outcome;
+import com.android.imsserviceentitlement.utils.ProvisioningState;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link JobService} for querying entitlement status in the background. The jobId is unique for
@@ -63,16 +84,31 @@ public class ImsEntitlementPollingService extends JobService {
             ComponentName.unflattenFromString(
                     "com.android.imsserviceentitlement/.ImsEntitlementPollingService");
 
+    /** Max number of subscriptions polled in parallel. */
+    private static final int MAX_CONCURRENT_POLLS = 2;
+    private static final long POLLING_THREAD_KEEP_ALIVE_SECONDS = 30;
+    /** Times to retry the provisioning values failed to apply. */
+    private static final int PROVISIONING_RETRIES = 1;
+
+    private static final Executor sPollingExecutor = createPollingExecutor();
+
+    /**
+     * Per subscription lanes over {@link #sPollingExecutor}; the tasks of a subscription run one
+     * at a time, and don't wait for the tasks of other subscriptions.
+     */
+    private static final ConcurrentHashMap<Integer, Executor> sPollingLanes =
+            new ConcurrentHashMap<>();
+
     private ImsEntitlementApi mImsEntitlementApi;
 
     /**
-     * Cache job id associated {@link EntitlementPollingTask} objects for canceling once job be
+     * Cache job id associated {@link EntitlementPollingTask} futures for canceling once job be
      * canceled.
      */
-    private final SparseArray<EntitlementPollingTask> mTasks = new SparseArray<>();
+    private final SparseArray<ListenableFuture<Void>> mTasks = new SparseArray<>();
 
     @VisibleForTesting
-    EntitlementPollingTask mOngoingTask;
+    ListenableFuture<Void> mOngoingTask;
 
     @Override
     @VisibleForTesting
@@ -122,9 +158,14 @@ public class ImsEntitlementPollingService extends JobService {
 
         // if the same job ID is scheduled again, the current one will be cancelled by platform and
         // #onStopJob will be called to removed the job.
-        mOngoingTask = new EntitlementPollingTask(params, subId);
-        mTasks.put(jobId, mOngoingTask);
-        mOngoingTask.execute();
+        ListenableFutureTask<Void> task =
+                ListenableFutureTask.create(new EntitlementPollingTask(params, subId), null);
+        mOngoingTask = task;
+        mTasks.put(jobId, task);
+        sPollingLanes
+                .computeIfAbsent(
+                        subId, unused -> MoreExecutors.newSequentialExecutor(sPollingExecutor))
+                .execute(task);
         return true;
     }
 
@@ -132,8 +173,9 @@ public class ImsEntitlementPollingService extends JobService {
     public boolean onStopJob(final JobParameters params) {
         int jobId = params.getJobId();
         Log.d(TAG, "onStopJob: " + jobId);
-        EntitlementPollingTask task = mTasks.get(jobId);
+        ListenableFuture<Void> task = mTasks.get(jobId);
         if (task != null) {
+            // Interrupts the running query, which stops before its next network attempt.
             task.cancel(true);
             mTasks.remove(jobId);
         }
@@ -141,14 +183,78 @@ public class ImsEntitlementPollingService extends JobService {
         return true;
     }
 
-    @VisibleForTesting
-    class EntitlementPollingTask extends AsyncTask<Void, Void, Void> {
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("ImsEntitlementPollingService:");
+        for (int subId : TelephonyUtils.getActiveSubIds(this)) {
+            dumpSubscription(pw, subId);
+        }
+    }
+
+    /** Prints the entitlement state of {@code subId}, without personal data. */
+    private void dumpSubscription(PrintWriter pw, int subId) {
+        EntitlementConfiguration configuration = new EntitlementConfiguration(this, subId);
+        pw.println("  subId=" + subId + ":");
+        pw.println("    vers=" + configuration.getVersCharacteristic());
+        pw.println("    tokenPresent=" + configuration.getToken().isPresent()
+                + " tokenExpiry="
+                + formatTokenExpiryTime(configuration.getTokenExpiryTimeMillis()));
+        pw.println("    queryTime=" + formatTime(configuration.getQueryTimeMillis()));
+        pw.println("    vowifiStatus=" + configuration.getVoWifiStatus()
+                + " volteStatus=" + configuration.getVolteStatus()
+                + " smsoipStatus=" + configuration.getSmsOverIpStatus());
+        pw.println("    fcmTokenPresent=" + FcmTokenStore.hasToken(this, subId)
+                + " fcmTokenPushPending=" + FcmTokenStore.isTokenPushPending(this, subId));
+        pw.println("    pendingJobs:");
+        for (JobInfo job : JobManager.getInstance(this, COMPONENT_NAME, subId).getPendingJobs()) {
+            pw.println("      jobId=" + job.getId()
+                    + " retryCount=" + job.getExtras().getInt(JobManager.EXTRA_RETRY_COUNT)
+                    + " minLatencyMillis=" + job.getMinLatencyMillis());
+        }
+        pw.println("    latency:");
+        EntitlementLatencyStats.getInstance(subId).dump(pw, "      ");
+        pw.println("    history:");
+        for (EntitlementQueryHistory.Record record :
+                EntitlementQueryHistory.getInstance().getRecords(subId)) {
+            pw.println("      " + record);
+        }
+    }
+
+    private static Executor createPollingExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        MAX_CONCURRENT_POLLS,
+                        MAX_CONCURRENT_POLLS,
+                        POLLING_THREAD_KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        runnable -> new Thread(runnable, "ImsEntitlementPolling"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static String formatTokenExpiryTime(long timeMillis) {
+        return timeMillis == EntitlementConfiguration.NO_TOKEN_EXPIRY_TIME_MILLIS
+                ? "noToken"
+                : formatTime(timeMillis);
+    }
+
+    private static String formatTime(long timeMillis) {
+        if (timeMillis <= 0) {
+            return "none";
+        }
+        return timeMillis == Long.MAX_VALUE ? "never" : Instant.ofEpochMilli(timeMillis).toString();
+    }
+
+    /** Polls the entitlement status of a subscription; cancelled by interrupting its thread. */
+    private class EntitlementPollingTask implements Runnable {
         private final JobParameters mParams;
         private final ImsEntitlementApi mImsEntitlementApi;
         private final ImsUtils mImsUtils;
         private final TelephonyUtils mTelephonyUtils;
         private final int mSubid;
         private final boolean mNeedsImsProvisioning;
+        private final EntitlementLatencyStats mLatencyStats;
 
         // States for metrics
         private long mStartTime;
@@ -163,6 +269,7 @@ public class ImsEntitlementPollingService extends JobService {
             this.mImsUtils = ImsUtils.getInstance(ImsEntitlementPollingService.this, subId);
             this.mTelephonyUtils = new TelephonyUtils(ImsEntitlementPollingService.this, subId);
             this.mSubid = subId;
+            this.mLatencyStats = EntitlementLatencyStats.getInstance(subId);
             this.mNeedsImsProvisioning = TelephonyUtils.isImsProvisioningRequired(
                     ImsEntitlementPollingService.this, mSubid);
             this.mImsEntitlementApi = ImsEntitlementPollingService.this.mImsEntitlementApi != null
@@ -171,30 +278,31 @@ public class ImsEntitlementPollingService extends JobService {
         }
 
         @Override
-        protected Void doInBackground(Void... unused) {
+        @WorkerThread
+        public void run() {
             mStartTime = mTelephonyUtils.getUptimeMillis();
-            int jobId = JobManager.getPureJobId(mParams.getJobId());
-            switch (jobId) {
-                case JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID:
-                    mPurpose = IMS_SERVICE_ENTITLEMENT_UPDATED__PURPOSE__POLLING;
-                    doEntitlementCheck();
-                    break;
-                default:
-                    break;
+            try {
+                int jobId = JobManager.getPureJobId(mParams.getJobId());
+                switch (jobId) {
+                    case JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID:
+                        mPurpose = IMS_SERVICE_ENTITLEMENT_UPDATED__PURPOSE__POLLING;
+                        doEntitlementCheck();
+                        break;
+                    default:
+                        break;
+                }
+            } finally {
+                sendStatsLogToMetrics();
+                // Cancelled by #onStopJob, which already asked for rescheduling.
+                if (!isCancelled()) {
+                    Log.d(TAG, "JobId:" + mParams.getJobId() + "- Task done.");
+                    ImsEntitlementPollingService.this.jobFinished(mParams, false);
+                }
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void unused) {
-            Log.d(TAG, "JobId:" + mParams.getJobId() + "- Task done.");
-            sendStatsLogToMetrics();
-            ImsEntitlementPollingService.this.jobFinished(mParams, false);
         }
 
-        @Override
-        protected void onCancelled(Void unused) {
-            sendStatsLogToMetrics();
+        private boolean isCancelled() {
+            return Thread.currentThread().isInterrupted();
         }
 
         private void doEntitlementCheck() {
@@ -212,32 +320,24 @@ public class ImsEntitlementPollingService extends JobService {
                 EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
                 Log.d(TAG, "Entitlement result: " + result);
 
-                if (performRetryIfNeeded(result)) {
+                if (isCancelled() || performRetryIfNeeded(result)) {
                     return;
                 }
 
-                if (shouldTurnOffWfc(result)) {
-                    mImsUtils.setVowifiProvisioned(false);
-                    mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
-                } else {
-                    mImsUtils.setVowifiProvisioned(true);
-                    mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
-                }
+                boolean vowifiProvisioned = !shouldTurnOffWfc(result);
+                boolean volteProvisioned = !shouldTurnOffVolte(result);
+                boolean smsoipProvisioned = !shouldTurnOffSMSoIP(result);
 
-                if (shouldTurnOffVolte(result)) {
-                    mImsUtils.setVolteProvisioned(false);
-                    mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
-                } else {
-                    mImsUtils.setVolteProvisioned(true);
-                    mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
-                }
+                mVowifiResult = toAppResult(vowifiProvisioned);
+                mVolteResult = toAppResult(volteProvisioned);
+                mSmsoipResult = toAppResult(smsoipProvisioned);
 
-                if (shouldTurnOffSMSoIP(result)) {
-                    mImsUtils.setSmsoipProvisioned(false);
-                    mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
+                // The configuration stays changed until marked applied, so a failed apply is
+                // retried on the next poll.
+                if (result == null || result.isConfigurationChanged()) {
+                    applyProvisioning(vowifiProvisioned, volteProvisioned, smsoipProvisioned);
                 } else {
-                    mImsUtils.setSmsoipProvisioned(true);
-                    mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
+                    Log.d(TAG, "Entitlement configuration already applied; skip provisioning.");
                 }
             } catch (RuntimeException e) {
                 mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
@@ -248,6 +348,30 @@ public class ImsEntitlementPollingService extends JobService {
             checkVersValidity();
         }
 
+        /** Applies the provisioning values, and marks the configuration applied on success. */
+        @WorkerThread
+        private void applyProvisioning(
+                boolean vowifiProvisioned, boolean volteProvisioned, boolean smsoipProvisioned) {
+            ProvisioningResult provisioningResult = mImsUtils.applyProvisioning(
+                    ProvisioningState.create(
+                            vowifiProvisioned, volteProvisioned, smsoipProvisioned),
+                    PROVISIONING_RETRIES);
+            Log.d(TAG, "Provisioning result: " + provisioningResult);
+            mLatencyStats.record(Phase.PROVISIONING, provisioningResult.getLatencyMillis());
+            if (provisioningResult.getVowifiOutcome() == Outcome.FAILED) {
+                mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
+            }
+            if (provisioningResult.getVolteOutcome() == Outcome.FAILED) {
+                mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
+            }
+            if (provisioningResult.getSmsoipOutcome() == Outcome.FAILED) {
+                mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
+            }
+            if (provisioningResult.isSuccessful()) {
+                mImsEntitlementApi.markConfigurationApplied();
+            }
+        }
+
         @WorkerThread
         private void doWfcEntitlementCheck() {
             if (!mImsUtils.isWfcEnabledByUser()) {
@@ -258,13 +382,17 @@ public class ImsEntitlementPollingService extends JobService {
                 EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
                 Log.d(TAG, "Entitlement result: " + result);
 
-                if (performRetryIfNeeded(result)) {
+                if (isCancelled() || performRetryIfNeeded(result)) {
                     return;
                 }
 
                 if (shouldTurnOffWfc(result)) {
                     mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
+                    long provisioningStartMillis = SystemClock.elapsedRealtime();
                     mImsUtils.disableWfc();
+                    mLatencyStats.record(
+                            Phase.PROVISIONING,
+                            SystemClock.elapsedRealtime() - provisioningStartMillis);
                 } else {
                     mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
                 }
@@ -274,6 +402,12 @@ public class ImsEntitlementPollingService extends JobService {
             }
         }
 
+        private int toAppResult(boolean provisioned) {
+            return provisioned
+                    ? IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED
+                    : IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
+        }
+
         /**
          * Performs retry if needed. Returns true if {@link ImsEntitlementPollingService} has
          * scheduled.
@@ -295,14 +429,12 @@ public class ImsEntitlementPollingService extends JobService {
          * during validity.
          */
         private void checkVersValidity() {
-            EntitlementConfiguration lastEntitlementConfiguration =
-                    new EntitlementConfiguration(ImsEntitlementPollingService.this, mSubid);
-            if (lastEntitlementConfiguration.entitlementValidation()
-                    == ClientBehavior.VALID_DURING_VALIDITY) {
+            VersCharacteristic vers =
+                    new EntitlementConfiguration(ImsEntitlementPollingService.this, mSubid)
+                            .getVersCharacteristic();
+            if (vers.getClientBehavior() == ClientBehavior.VALID_DURING_VALIDITY) {
                 enqueueJobWithDelay(
-                        ImsEntitlementPollingService.this,
-                        mSubid,
-                        lastEntitlementConfiguration.getVersValidity());
+                        ImsEntitlementPollingService.this, mSubid, vers.getValidity());
             }
         }
 
@@ -344,6 +476,7 @@ public class ImsEntitlementPollingService extends JobService {
 
         private void sendStatsLogToMetrics() {
             mDurationMillis = mTelephonyUtils.getUptimeMillis() - mStartTime;
+            mLatencyStats.record(Phase.POLLING, mDurationMillis);
 
             // If no result set, it was cancelled for reasons.
             if (mVowifiResult == IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__UNKNOWN_RESULT) {
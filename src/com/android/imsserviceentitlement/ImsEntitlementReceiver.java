@@ -66,13 +66,16 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
                 intent.getIntExtra(
                         SubscriptionManager.EXTRA_SLOT_INDEX,
                         SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+        String action = intent.getAction();
+        if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
+            TelephonyUtils.invalidateCarrierConfig(currentSubId);
+        }
         Dependencies dependencies = createDependency(context, currentSubId);
         if (!dependencies.userManager.isSystemUser()
                 || !TelephonyUtils.isImsProvisioningRequired(context, currentSubId)) {
             return;
         }
 
-        String action = intent.getAction();
         if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
             final PendingResult result = goAsync();
             getAsyncExecutor().execute(
@@ -118,6 +121,9 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
         }
 
         if (shouldQuery) {
+            // The IMS stack may have lost the provisioning values since they were applied, e.g. on
+            // boot up; the query applies them again, writing only the values which differ.
+            new EntitlementConfiguration(context, currentSubId).markApplyPending();
             jobManager.queryEntitlementStatusOnceNetworkReady();
         }
 
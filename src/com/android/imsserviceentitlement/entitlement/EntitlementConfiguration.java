@@ -28,26 +28,58 @@ import java.util.concurrent.TimeUnit;
 
 /** Provides the entitlement characteristic which stored from previous query. */
 public class EntitlementConfiguration {
-    /** Default value of version for VERS characteristic. */
-    private static final int DEFAULT_VERSION = 0;
-    /** Default value of validity for VERS and TOKEN characteristics. */
+    /** Default value of validity for TOKEN characteristic. */
     private static final long DEFAULT_VALIDITY = 0;
+    /** Returned by {@link #getTokenExpiryTimeMillis()} if no token is stored. */
+    public static final long NO_TOKEN_EXPIRY_TIME_MILLIS = -1;
     /** Default value of VoLTE/VoWifi/SMSoverIP entitlemenet status. */
     private static final int INCOMPATIBLE_STATE = 2;
 
     private final EntitlementConfigurationsDataStore mConfigurationsDataStore;
 
-    private XmlDoc mXmlDoc = new XmlDoc(null);
-
     public EntitlementConfiguration(Context context, int subId) {
         mConfigurationsDataStore = EntitlementConfigurationsDataStore.getInstance(context, subId);
-        mConfigurationsDataStore.get().ifPresent(rawXml -> mXmlDoc = new XmlDoc(rawXml));
     }
 
-    /** Update VERS characteristics with given version and validity. */
-    public void update(String rawXml) {
-        mConfigurationsDataStore.set(rawXml);
-        mXmlDoc = new XmlDoc(rawXml);
+    /**
+     * Update VERS characteristics with given version and validity. Returns {@code false} if the
+     * characteristics didn't change, in which case only the query time is updated.
+     */
+    public boolean update(String rawXml) {
+        return update(rawXml, new XmlDoc(rawXml));
+    }
+
+    /**
+     * Update VERS characteristics with given version and validity, reusing the {@code xmlDoc}
+     * already parsed from {@code rawXml} to avoid parsing the same response twice. Returns {@code
+     * false} if the characteristics didn't change, in which case only the query time is updated.
+     */
+    public boolean update(String rawXml, XmlDoc xmlDoc) {
+        return mConfigurationsDataStore.set(rawXml, xmlDoc);
+    }
+
+    /**
+     * Returns {@code true} if the configuration changed since it was last marked applied by
+     * {@link #markApplied}.
+     */
+    public boolean isApplyPending() {
+        return mConfigurationsDataStore.isApplyPending();
+    }
+
+    /**
+     * Marks the configuration {@code xmlDoc} as applied, e.g. to the IMS provisioning values, if it
+     * is still the stored one.
+     */
+    public void markApplied(XmlDoc xmlDoc) {
+        mConfigurationsDataStore.markApplied(xmlDoc);
+    }
+
+    /**
+     * Marks the configuration to be applied again on the next query, e.g. as the IMS stack may
+     * have lost the provisioning values.
+     */
+    public void markApplyPending() {
+        mConfigurationsDataStore.markApplyPending();
     }
 
     /**
@@ -55,12 +87,11 @@ public class EntitlementConfiguration {
      * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
      */
     public int getVolteStatus() {
-        return mXmlDoc.get(
+        return xmlDoc().getInt(
                 ResponseXmlNode.APPLICATION,
                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_VOLTE)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+                ServiceEntitlement.APP_VOLTE,
+                INCOMPATIBLE_STATE);
     }
 
     /**
@@ -68,12 +99,11 @@ public class EntitlementConfiguration {
      * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
      */
     public int getVoWifiStatus() {
-        return mXmlDoc.get(
+        return xmlDoc().getInt(
                 ResponseXmlNode.APPLICATION,
                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_VOWIFI)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+                ServiceEntitlement.APP_VOWIFI,
+                INCOMPATIBLE_STATE);
     }
 
     /**
@@ -81,12 +111,11 @@ public class EntitlementConfiguration {
      * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
      */
     public int getSmsOverIpStatus() {
-        return mXmlDoc.get(
+        return xmlDoc().getInt(
                 ResponseXmlNode.APPLICATION,
                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_SMSOIP)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+                ServiceEntitlement.APP_SMSOIP,
+                INCOMPATIBLE_STATE);
     }
 
     /**
@@ -96,26 +125,53 @@ public class EntitlementConfiguration {
      */
     public Optional<String> getToken() {
         return isTokenInValidityPeriod()
-                ? mXmlDoc.get(ResponseXmlNode.TOKEN, ResponseXmlAttributes.TOKEN, null)
+                ? xmlDoc().get(ResponseXmlNode.TOKEN, ResponseXmlAttributes.TOKEN, null)
                 : Optional.empty();
     }
 
     private boolean isTokenInValidityPeriod() {
-        long queryTimeMillis = mConfigurationsDataStore.getQueryTimeMillis();
-        long tokenValidityMillis = TimeUnit.SECONDS.toMillis(getTokenValidity());
+        return System.currentTimeMillis() < getTokenExpiryTimeMillis();
+    }
 
+    /**
+     * Returns the time the token expires, in milliseconds since epoch. Returns {@link
+     * Long#MAX_VALUE} if the token is valid without limitation of duration, 0 if no query has
+     * been done, or {@link #NO_TOKEN_EXPIRY_TIME_MILLIS} if no token is stored. Derived once when
+     * the configuration is loaded or updated.
+     */
+    public long getTokenExpiryTimeMillis() {
+        return mConfigurationsDataStore.getTokenExpiryTimeMillis();
+    }
+
+    /** Returns the time of the last query, in milliseconds since epoch; 0 if none. */
+    public long getQueryTimeMillis() {
+        return mConfigurationsDataStore.getQueryTimeMillis();
+    }
+
+    /** Returns the expiry time of the token in {@code xmlDoc} got at {@code queryTimeMillis}. */
+    static long getTokenExpiryTimeMillis(XmlDoc xmlDoc, long queryTimeMillis) {
         if (queryTimeMillis <= 0) {
-            // False if the query time not been set.
-            return false;
+            // Expired if the query time not been set.
+            return 0;
+        }
+        if (!xmlDoc.get(ResponseXmlNode.TOKEN, ResponseXmlAttributes.TOKEN, null).isPresent()) {
+            return NO_TOKEN_EXPIRY_TIME_MILLIS;
         }
 
+        long tokenValidityMillis =
+                TimeUnit.SECONDS.toMillis(
+                        xmlDoc.getLong(
+                                ResponseXmlNode.TOKEN,
+                                ResponseXmlAttributes.VALIDITY,
+                                null,
+                                DEFAULT_VALIDITY));
         // When the token validity is set to 0, the Entitlement Client shall store the token without
         // any limitation of duration.
-        if (tokenValidityMillis <= 0) {
-            return true;
+        if (tokenValidityMillis <= 0 || tokenValidityMillis > Long.MAX_VALUE - queryTimeMillis) {
+            return Long.MAX_VALUE;
         }
 
-        return (System.currentTimeMillis() - queryTimeMillis) < tokenValidityMillis;
+        return queryTimeMillis + tokenValidityMillis;
     }
 
     /**
@@ -123,17 +179,16 @@ public class EntitlementConfiguration {
      * received by the client. If no data exist then returns default value 0.
      */
     public long getTokenValidity() {
-        return mXmlDoc.get(
+        return xmlDoc().getLong(
                 ResponseXmlNode.TOKEN,
                 ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
+                null,
+                DEFAULT_VALIDITY);
     }
 
     /** Returns version stored in the {@link EntitlementCharacteristicDataStore}. */
     public Optional<String> getVersion() {
-        return mXmlDoc.get(ResponseXmlNode.VERS, ResponseXmlAttributes.VERSION, null);
+        return xmlDoc().get(ResponseXmlNode.VERS, ResponseXmlAttributes.VERSION, null);
     }
 
     /**
@@ -141,17 +196,15 @@ public class EntitlementConfiguration {
      * received by the client. If no data exist then returns default value 0.
      */
     public long getVersValidity() {
-        return mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
+        return getVersCharacteristic().getValidity();
+    }
+
+    /** Returns the VERS characteristic, derived when the configuration is loaded or updated. */
+    public VersCharacteristic getVersCharacteristic() {
+        return mConfigurationsDataStore.getVersCharacteristic();
     }
 
     public enum ClientBehavior {
-        /** Unknown behavior. */
-        UNKNOWN_BEHAVIOR,
         /** Entitlement data is valid during validity seconds. */
         VALID_DURING_VALIDITY,
         /** Entitlement data is valid without any limitation of duration. */
@@ -174,33 +227,7 @@ public class EntitlementConfiguration {
 
     /** Returns {@link ClientBehavior} for the service to be configured. */
     public ClientBehavior entitlementValidation() {
-        int version = mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VERSION,
-                null)
-                .map(Integer::parseInt)
-                .orElse(DEFAULT_VERSION);
-        long validity = mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
-
-        if (version > 0 && validity > 0) {
-            return ClientBehavior.VALID_DURING_VALIDITY;
-        } else if (version > 0 && validity == 0) {
-            return ClientBehavior.VALID_WITHOUT_DURATION;
-        } else if (version == 0 && validity == 0) {
-            return ClientBehavior.NEEDS_TO_RESET;
-        } else if (version == -1 && validity == -1) {
-            return ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS;
-        } else if (version == -2 && validity == -2) {
-            return ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON;
-        }
-
-        // Should never reach.
-        return ClientBehavior.UNKNOWN_BEHAVIOR;
+        return getVersCharacteristic().getClientBehavior();
     }
 
     /**
@@ -226,29 +253,45 @@ public class EntitlementConfiguration {
 
     /** Reverts to the default configurations except the version and validity. */
     public void resetConfigsExceptVers() {
-        String rawXml =
-                "<wap-provisioningdoc version=\"1.1\">"
-                + "  <characteristic type=\"VERS\">"
-                + "    <parm name=\"version\" value=\"" + getVersion().get() + "\"/>"
-                + "    <parm name=\"validity\" value=\"" + getVersValidity() + "\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"TOKEN\">"
-                + "    <parm name=\"token\" value=\"\"/>"
-                + "    <parm name=\"validity\" value=\"0\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2003\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2004\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2005\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "</wap-provisioningdoc>";
-        update(rawXml);
+        XmlDoc defaultXmlDoc =
+                new XmlDoc.Builder()
+                        .addParam(
+                                ResponseXmlNode.VERS,
+                                null,
+                                ResponseXmlAttributes.VERSION,
+                                getVersion().orElse(null))
+                        .addParam(
+                                ResponseXmlNode.VERS,
+                                null,
+                                ResponseXmlAttributes.VALIDITY,
+                                String.valueOf(getVersValidity()))
+                        .addParam(
+                                ResponseXmlNode.TOKEN,
+                                null,
+                                ResponseXmlAttributes.VALIDITY,
+                                String.valueOf(DEFAULT_VALIDITY))
+                        .addParam(
+                                ResponseXmlNode.APPLICATION,
+                                ServiceEntitlement.APP_VOLTE,
+                                ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                                String.valueOf(INCOMPATIBLE_STATE))
+                        .addParam(
+                                ResponseXmlNode.APPLICATION,
+                                ServiceEntitlement.APP_VOWIFI,
+                                ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                                String.valueOf(INCOMPATIBLE_STATE))
+                        .addParam(
+                                ResponseXmlNode.APPLICATION,
+                                ServiceEntitlement.APP_SMSOIP,
+                                ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                                String.valueOf(INCOMPATIBLE_STATE))
+                        .build();
+        // Persisted as parsed characteristics only, no XML is built for the defaults.
+        update(null, defaultXmlDoc);
+    }
+
+    /** Returns the parsed characteristics cached for this subscription. */
+    private XmlDoc xmlDoc() {
+        return mConfigurationsDataStore.getXmlDoc();
     }
 }
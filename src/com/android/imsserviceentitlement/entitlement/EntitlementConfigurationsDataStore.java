@@ -18,42 +18,158 @@ package com.android.imsserviceentitlement.entitlement;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.SparseArray;
+import android.util.AtomicFile;
+import android.util.Log;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.imsserviceentitlement.debug.DebugUtils;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Persists the entitlement characteristics of a subscription.
+ *
+ * <p>The characteristics are stored as a binary snapshot of the parsed {@link XmlDoc}, so loading
+ * them is a single file read without XML parsing. The raw XML document is only kept on debuggable
+ * builds for debugging. Data stored as raw XML by previous versions is migrated on first access.
+ */
 class EntitlementConfigurationsDataStore {
+    private static final String TAG = "IMSSE-EntitlementConfigurationsDataStore";
+
     private static final String PREFERENCE_ENTITLEMENT_CHARACTERISTICS =
             "ENTITLEMENT_CHARACTERISTICS";
     private static final String XML_DOCUMENT = "XML_DOCUMENT";
     private static final String QUERY_TIME_MILLIS = "QUERY_TIME_MILLIS";
+    /** Whether the stored characteristics changed and were not marked applied since. */
+    private static final String APPLY_PENDING = "APPLY_PENDING";
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
 
     private final SharedPreferences mPreferences;
+    private final AtomicFile mSnapshotFile;
 
-    private static final SparseArray<EntitlementConfigurationsDataStore> sInstances =
-            new SparseArray<>();
+    /**
+     * The parsed characteristics, shared by all {@link EntitlementConfiguration} of the same
+     * subscription. Loaded on first access and replaced on {@link #set}.
+     */
+    @GuardedBy("this")
+    private XmlDoc mXmlDoc;
+    /** The token expiry time derived from {@link #mXmlDoc} and the query time. */
+    @GuardedBy("this")
+    private long mTokenExpiryTimeMillis;
+    /** The VERS characteristic derived from {@link #mXmlDoc}. */
+    @GuardedBy("this")
+    private VersCharacteristic mVersCharacteristic;
+
+    /**
+     * Cache subscription id associated instances. Accessed concurrently from the receiver, the
+     * polling job and the activation UI, so a concurrent map is used: lookups of an existing
+     * instance don't lock, and only one instance is ever created for a subscription id.
+     */
+    private static final ConcurrentHashMap<Integer, EntitlementConfigurationsDataStore>
+            sInstances = new ConcurrentHashMap<>();
 
     public static EntitlementConfigurationsDataStore getInstance(Context context, int subId) {
-        if (sInstances.get(subId) == null) {
-            sInstances.put(subId, new EntitlementConfigurationsDataStore(context, subId));
+        EntitlementConfigurationsDataStore instance = sInstances.get(subId);
+        if (instance != null) {
+            return instance;
         }
-        return sInstances.get(subId);
+        return sInstances.computeIfAbsent(
+                subId, id -> new EntitlementConfigurationsDataStore(context, id));
+    }
+
+    @VisibleForTesting
+    EntitlementConfigurationsDataStore(Context context, int subId) {
+        this(context, subId, new AtomicFile(new File(context.getFilesDir(),
+                PREFERENCE_ENTITLEMENT_CHARACTERISTICS + "_" + subId + SNAPSHOT_FILE_SUFFIX)));
     }
 
-    private EntitlementConfigurationsDataStore(Context context, int subId) {
+    @VisibleForTesting
+    EntitlementConfigurationsDataStore(Context context, int subId, AtomicFile snapshotFile) {
         this.mPreferences = context.getSharedPreferences(
-                PREFERENCE_ENTITLEMENT_CHARACTERISTICS + "_" + subId,
-                Context.MODE_PRIVATE);
+                PREFERENCE_ENTITLEMENT_CHARACTERISTICS + "_" + subId, Context.MODE_PRIVATE);
+        this.mSnapshotFile = snapshotFile;
+    }
+
+    /**
+     * Stores the characteristics and the query time. Returns {@code false} if the characteristics
+     * have the same params as the stored ones, in which case only the query time is updated. If
+     * the characteristics can't be written, nothing is updated and the stored ones are kept.
+     */
+    public synchronized boolean set(String characteristics, XmlDoc xmlDoc) {
+        long queryTimeMillis = System.currentTimeMillis();
+        SharedPreferences.Editor editor =
+                mPreferences.edit().putLong(QUERY_TIME_MILLIS, queryTimeMillis);
+        boolean changed = !xmlDoc.equals(getXmlDoc());
+        if (changed) {
+            if (!writeSnapshot(xmlDoc)) {
+                // Keep memory in line with the disk; the next query tries again.
+                return true;
+            }
+            putRawXmlForDebugging(editor, characteristics).putBoolean(APPLY_PENDING, true);
+            mXmlDoc = xmlDoc;
+        }
+        editor.apply();
+        updateDerivedValues(queryTimeMillis);
+        return changed;
+    }
+
+    /** Returns the parsed characteristics, loading the stored snapshot only on first access. */
+    public synchronized XmlDoc getXmlDoc() {
+        if (mXmlDoc == null) {
+            mXmlDoc = loadSnapshot();
+            updateDerivedValues(getQueryTimeMillis());
+        }
+        return mXmlDoc;
+    }
+
+    /**
+     * Returns the time the stored token expires, in milliseconds since epoch. See {@link
+     * EntitlementConfiguration#getTokenExpiryTimeMillis()}.
+     */
+    public synchronized long getTokenExpiryTimeMillis() {
+        getXmlDoc();
+        return mTokenExpiryTimeMillis;
+    }
+
+    /** Returns the VERS characteristic of the stored characteristics. */
+    public synchronized VersCharacteristic getVersCharacteristic() {
+        getXmlDoc();
+        return mVersCharacteristic;
     }
 
-    public void set(String characteristics) {
-        mPreferences
-                .edit()
-                .putString(XML_DOCUMENT, characteristics)
-                .putLong(QUERY_TIME_MILLIS, System.currentTimeMillis())
-                .apply();
+    /**
+     * Returns {@code true} if the stored characteristics changed since they were last marked
+     * applied by {@link #markApplied}. Also {@code true} if they were stored by a previous version.
+     */
+    public boolean isApplyPending() {
+        return mPreferences.getBoolean(APPLY_PENDING, true);
     }
 
+    /**
+     * Marks the stored characteristics as applied, if they are still {@code xmlDoc}; if another
+     * query stored new ones meanwhile, those are still to be applied.
+     */
+    public synchronized void markApplied(XmlDoc xmlDoc) {
+        if (xmlDoc.equals(getXmlDoc())) {
+            mPreferences.edit().putBoolean(APPLY_PENDING, false).apply();
+        }
+    }
+
+    /** Marks the stored characteristics to be applied again, even if they don't change. */
+    public void markApplyPending() {
+        mPreferences.edit().putBoolean(APPLY_PENDING, true).apply();
+    }
+
+    /** Returns the raw XML document, only available on debuggable builds. */
     public Optional<String> get() {
         return Optional.ofNullable(mPreferences.getString(XML_DOCUMENT, null));
     }
@@ -61,4 +177,64 @@ class EntitlementConfigurationsDataStore {
     public long getQueryTimeMillis() {
         return mPreferences.getLong(QUERY_TIME_MILLIS, 0);
     }
+
+    @GuardedBy("this")
+    private XmlDoc loadSnapshot() {
+        try {
+            return XmlDoc.fromSnapshot(mSnapshotFile.readFully());
+        } catch (FileNotFoundException e) {
+            return migrateFromRawXml();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load snapshot, fallback to raw XML. " + e);
+            return new XmlDoc(get().orElse(null));
+        }
+    }
+
+    /** Converts the raw XML document stored by previous versions into a snapshot. */
+    @GuardedBy("this")
+    private XmlDoc migrateFromRawXml() {
+        Optional<String> rawXml = get();
+        XmlDoc xmlDoc = new XmlDoc(rawXml.orElse(null));
+        if (rawXml.isPresent()) {
+            Log.d(TAG, "Migrate raw XML to snapshot.");
+            // The raw XML is the only copy until the snapshot is written; retried on next load.
+            if (writeSnapshot(xmlDoc)) {
+                putRawXmlForDebugging(mPreferences.edit(), rawXml.get()).apply();
+            }
+        }
+        return xmlDoc;
+    }
+
+    /** Writes the snapshot of {@code xmlDoc}. Returns {@code false} on failure. */
+    @GuardedBy("this")
+    private boolean writeSnapshot(XmlDoc xmlDoc) {
+        FileOutputStream out = null;
+        try {
+            out = mSnapshotFile.startWrite();
+            out.write(xmlDoc.toSnapshot());
+            mSnapshotFile.finishWrite(out);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot. " + e);
+            if (out != null) {
+                mSnapshotFile.failWrite(out);
+            }
+            return false;
+        }
+    }
+
+    /** Derives the values served without looking up {@link #mXmlDoc} on each call. */
+    @GuardedBy("this")
+    private void updateDerivedValues(long queryTimeMillis) {
+        mTokenExpiryTimeMillis =
+                EntitlementConfiguration.getTokenExpiryTimeMillis(mXmlDoc, queryTimeMillis);
+        mVersCharacteristic = VersCharacteristic.from(mXmlDoc);
+    }
+
+    private static SharedPreferences.Editor putRawXmlForDebugging(
+            SharedPreferences.Editor editor, @Nullable String rawXml) {
+        return DebugUtils.isDebugBuild()
+                ? editor.putString(XML_DOCUMENT, rawXml)
+                : editor.remove(XML_DOCUMENT);
+    }
 }
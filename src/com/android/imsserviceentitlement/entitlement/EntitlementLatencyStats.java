@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of the phases of entitlement queries of a subscription, kept in memory since
+ * the process started. Durations are measured with {@link android.os.SystemClock#elapsedRealtime}.
+ */
+public final class EntitlementLatencyStats {
+    /** The phases of an entitlement query and of applying its result. */
+    public enum Phase {
+        /** Requesting the FCM token for the notification token of the request. */
+        FCM_TOKEN,
+        /** A request to the entitlement server, including the EAP-AKA authentication. */
+        QUERY,
+        /** Parsing the response. */
+        PARSE,
+        /** Storing the parsed configuration. */
+        STORE,
+        /** Applying the result to the IMS provisioning. */
+        PROVISIONING,
+        /** A whole polling job, from start to the result applied. */
+        POLLING,
+    }
+
+    /** Upper bounds in milliseconds of the histogram buckets; the last bucket is unbounded. */
+    @VisibleForTesting
+    static final long[] BUCKET_UPPER_BOUNDS_MILLIS =
+            {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private static final ConcurrentHashMap<Integer, EntitlementLatencyStats> sInstances =
+            new ConcurrentHashMap<>();
+
+    @GuardedBy("this")
+    private final long[][] mBucketCounts =
+            new long[Phase.values().length][BUCKET_UPPER_BOUNDS_MILLIS.length + 1];
+    @GuardedBy("this")
+    private final long[] mTotalMillis = new long[Phase.values().length];
+    @GuardedBy("this")
+    private final long[] mMaxMillis = new long[Phase.values().length];
+
+    @VisibleForTesting
+    EntitlementLatencyStats() {}
+
+    /** Returns the stats of {@code subId}. */
+    public static EntitlementLatencyStats getInstance(int subId) {
+        return sInstances.computeIfAbsent(subId, id -> new EntitlementLatencyStats());
+    }
+
+    /** Records a {@code phase} which took {@code durationMillis}. */
+    public synchronized void record(Phase phase, long durationMillis) {
+        int index = phase.ordinal();
+        mBucketCounts[index][bucketOf(durationMillis)]++;
+        mTotalMillis[index] += durationMillis;
+        mMaxMillis[index] = Math.max(mMaxMillis[index], durationMillis);
+    }
+
+    /**
+     * Returns the number of durations of {@code phase} in each bucket of {@link
+     * #BUCKET_UPPER_BOUNDS_MILLIS}, followed by the number above the last bound.
+     */
+    public synchronized long[] getBucketCounts(Phase phase) {
+        return mBucketCounts[phase.ordinal()].clone();
+    }
+
+    /** Returns the number of durations recorded for {@code phase}. */
+    public synchronized long getCount(Phase phase) {
+        return Arrays.stream(mBucketCounts[phase.ordinal()]).sum();
+    }
+
+    /** Returns the mean duration of {@code phase} in milliseconds, or 0 if none recorded. */
+    public synchronized long getMeanMillis(Phase phase) {
+        long count = getCount(phase);
+        return count == 0 ? 0 : mTotalMillis[phase.ordinal()] / count;
+    }
+
+    /** Returns the longest duration of {@code phase} in milliseconds, or 0 if none recorded. */
+    public synchronized long getMaxMillis(Phase phase) {
+        return mMaxMillis[phase.ordinal()];
+    }
+
+    /** Prints the bucket bounds and the recorded phases, each line starting with {@code prefix}. */
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "bucketUpperBoundsMillis="
+                + Arrays.toString(BUCKET_UPPER_BOUNDS_MILLIS));
+        for (Phase phase : Phase.values()) {
+            long count = getCount(phase);
+            if (count == 0) {
+                continue;
+            }
+            pw.println(prefix + phase
+                    + ": count=" + count
+                    + " meanMillis=" + getMeanMillis(phase)
+                    + " maxMillis=" + getMaxMillis(phase)
+                    + " buckets=" + Arrays.toString(mBucketCounts[phase.ordinal()]));
+        }
+    }
+
+    private static int bucketOf(long durationMillis) {
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MILLIS.length; i++) {
+            if (durationMillis <= BUCKET_UPPER_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_UPPER_BOUNDS_MILLIS.length;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+
+/**
+ * The most recent entitlement queries of all subscriptions and their outcomes, kept in memory for
+ * dumpsys. Only the last {@link #MAX_RECORDS} queries are kept.
+ */
+public final class EntitlementQueryHistory {
+    @VisibleForTesting
+    static final int MAX_RECORDS = 32;
+
+    private static final EntitlementQueryHistory sInstance = new EntitlementQueryHistory();
+
+    @GuardedBy("this")
+    private final ArrayDeque<Record> mRecords = new ArrayDeque<>(MAX_RECORDS);
+
+    @VisibleForTesting
+    EntitlementQueryHistory() {}
+
+    public static EntitlementQueryHistory getInstance() {
+        return sInstance;
+    }
+
+    /** Adds a record, dropping the oldest one if the history is full. */
+    public synchronized void add(Record record) {
+        if (mRecords.size() == MAX_RECORDS) {
+            mRecords.removeFirst();
+        }
+        mRecords.addLast(record);
+    }
+
+    /** Returns the records of {@code subId}, oldest first. */
+    public synchronized ImmutableList<Record> getRecords(int subId) {
+        ImmutableList.Builder<Record> records = ImmutableList.builder();
+        for (Record record : mRecords) {
+            if (record.getSubId() == subId) {
+                records.add(record);
+            }
+        }
+        return records.build();
+    }
+
+    /** An entitlement query and its outcome. */
+    @AutoValue
+    public abstract static class Record {
+        /** The time the query started, in milliseconds since epoch. */
+        public abstract long getStartTimeMillis();
+
+        public abstract int getSubId();
+
+        /** The number of requests sent to the server, including retries. */
+        public abstract int getAttempts();
+
+        /** A short description of the outcome; without personal data. */
+        public abstract String getOutcome();
+
+        /** The total duration of each phase of the query, in milliseconds. */
+        public abstract ImmutableMap<Phase, Long> getPhaseMillis();
+
+        public static Record create(
+                long startTimeMillis,
+                int subId,
+                int attempts,
+                String outcome,
+                ImmutableMap<Phase, Long> phaseMillis) {
+            return new AutoValue_EntitlementQueryHistory_Record(
+                    startTimeMillis, subId, attempts, outcome, phaseMillis);
+        }
+
+        @Override
+        public final String toString() {
+            return Instant.ofEpochMilli(getStartTimeMillis())
+                    + " attempts=" + getAttempts()
+                    + " outcome=" + getOutcome()
+                    + " phaseMillis=" + getPhaseMillis();
+        }
+    }
+}
@@ -52,7 +52,8 @@ public abstract class EntitlementResult {
                 .setEmergencyAddressWebUrl("")
                 .setEmergencyAddressWebData("")
                 .setTermsAndConditionsWebUrl("")
-                .setRetryAfterSeconds(-1);
+                .setRetryAfterSeconds(-1)
+                .setConfigurationChanged(true);
     }
 
     /** The entitlement and service status of VoWiFi. */
@@ -69,6 +70,12 @@ public abstract class EntitlementResult {
     public abstract String getTermsAndConditionsWebUrl();
     /** Service temporary unavailable, retry the status check after a delay in seconds. */
     public abstract long getRetryAfterSeconds();
+    /**
+     * Whether the entitlement configuration changed since it was last marked applied by {@link
+     * com.android.imsserviceentitlement.ImsEntitlementApi#markConfigurationApplied}. If not, the
+     * statuses were already applied and don't need to be applied again.
+     */
+    public abstract boolean isConfigurationChanged();
 
     /** Builder of {@link EntitlementResult}. */
     @AutoValue.Builder
@@ -81,6 +88,7 @@ public abstract class EntitlementResult {
         public abstract Builder setEmergencyAddressWebData(String emergencyAddressWebData);
         public abstract Builder setTermsAndConditionsWebUrl(String termsAndConditionsWebUrl);
         public abstract Builder setRetryAfterSeconds(long retryAfter);
+        public abstract Builder setConfigurationChanged(boolean configurationChanged);
     }
 
     @Override
@@ -93,6 +101,7 @@ public abstract class EntitlementResult {
         builder.append(",getEmergencyAddressWebData=").append(opaque(getEmergencyAddressWebData()));
         builder.append(",getTermsAndConditionsWebUrl=").append(getTermsAndConditionsWebUrl());
         builder.append(",getRetryAfter=").append(getRetryAfterSeconds());
+        builder.append(",isConfigurationChanged=").append(isConfigurationChanged());
         builder.append("}");
         return builder.toString();
     }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlAttributes;
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNode;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * The version and validity of the VERS characteristic, and the {@link ClientBehavior} they imply.
+ * Derived once when the configuration is loaded or updated.
+ */
+@AutoValue
+public abstract class VersCharacteristic {
+    /** Default value of version for VERS characteristic. */
+    private static final int DEFAULT_VERSION = 0;
+    /** Default value of validity for VERS characteristic. */
+    private static final long DEFAULT_VALIDITY = 0;
+
+    private static final int VERSION_RESET = 0;
+    private static final int VERSION_RESET_EXCEPT_VERS = -1;
+    private static final int VERSION_RESET_EXCEPT_VERS_UNTIL_SETTING_ON = -2;
+
+    /** The configuration version; 0 if not present or malformed. */
+    public abstract int getVersion();
+
+    /** The validity of the version in seconds; 0 if not present or malformed. */
+    public abstract long getValidity();
+
+    /** The behavior of the client for the configured services. */
+    public abstract ClientBehavior getClientBehavior();
+
+    /** Returns the VERS characteristic of {@code xmlDoc}. */
+    public static VersCharacteristic from(XmlDoc xmlDoc) {
+        return create(
+                xmlDoc.getInt(
+                        ResponseXmlNode.VERS, ResponseXmlAttributes.VERSION, null, DEFAULT_VERSION),
+                xmlDoc.getLong(
+                        ResponseXmlNode.VERS,
+                        ResponseXmlAttributes.VALIDITY,
+                        null,
+                        DEFAULT_VALIDITY));
+    }
+
+    /** Returns the VERS characteristic of {@code version} and {@code validity}. */
+    public static VersCharacteristic create(int version, long validity) {
+        return new AutoValue_VersCharacteristic(
+                version, validity, toClientBehavior(version, validity));
+    }
+
+    /**
+     * Classifies the version and validity. A non-positive version decides the behavior on its own,
+     * the validity paired with it is not used by the client. An unknown non-positive version, or a
+     * positive version with a negative validity, can't be trusted so the configuration is reset.
+     */
+    private static ClientBehavior toClientBehavior(int version, long validity) {
+        if (version > 0) {
+            if (validity > 0) {
+                return ClientBehavior.VALID_DURING_VALIDITY;
+            }
+            return validity == 0
+                    ? ClientBehavior.VALID_WITHOUT_DURATION
+                    : ClientBehavior.NEEDS_TO_RESET;
+        }
+        switch (version) {
+            case VERSION_RESET_EXCEPT_VERS:
+                return ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS;
+            case VERSION_RESET_EXCEPT_VERS_UNTIL_SETTING_ON:
+                return ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON;
+            case VERSION_RESET:
+            default:
+                return ClientBehavior.NEEDS_TO_RESET;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
 
+import com.android.imsserviceentitlement.ImsEntitlementPollingService;
 import com.android.imsserviceentitlement.R;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
@@ -133,6 +134,12 @@ public class FcmRegistrationService extends JobService {
         }
         Log.d(TAG, "FCM token: " + token + " subId: " + subId);
         FcmTokenStore.setToken(this, subId, token);
+        if (FcmTokenStore.isTokenPushPending(this, subId)) {
+            // A query went out without the token, query again to send it to the server.
+            Log.d(TAG, "Send FCM token to the server, subId: " + subId);
+            FcmTokenStore.setTokenPushPending(this, subId, false);
+            ImsEntitlementPollingService.enqueueJob(this, subId, /* retryCount= */ 0);
+        }
         return true;
     }
 
@@ -30,6 +30,9 @@ public final class FcmTokenStore {
 
     private static final String FCM_TOKEN_FILE = "FCM_TOKEN";
     private static final String FCM_TOKEN_KEY = "FCM_TOKEN_SUB_";
+    // Kept apart from FCM_TOKEN_FILE, whose listeners treat any change as a token change.
+    private static final String FCM_TOKEN_PUSH_PENDING_FILE = "FCM_TOKEN_PUSH_PENDING";
+    private static final String FCM_TOKEN_PUSH_PENDING_KEY = "FCM_TOKEN_PUSH_PENDING_SUB_";
 
     private FcmTokenStore() {}
 
@@ -59,6 +62,22 @@ public final class FcmTokenStore {
         }
     }
 
+    /**
+     * Sets whether the FCM token has to be sent to the server once available, i.e. an entitlement
+     * query went out without it.
+     */
+    public static void setTokenPushPending(Context context, int subId, boolean pending) {
+        getPushPendingFile(context)
+                .edit()
+                .putBoolean(FCM_TOKEN_PUSH_PENDING_KEY + subId, pending)
+                .apply();
+    }
+
+    /** Returns {@code true} if the FCM token has to be sent to the server once available. */
+    public static boolean isTokenPushPending(Context context, int subId) {
+        return getPushPendingFile(context).getBoolean(FCM_TOKEN_PUSH_PENDING_KEY + subId, false);
+    }
+
     /** Registers a listener for FCM token update. */
     public static void registerTokenUpdateListener(
             Context context, OnSharedPreferenceChangeListener listener) {
@@ -80,4 +99,8 @@ public final class FcmTokenStore {
     private static SharedPreferences getFcmTokenFile(Context context) {
         return context.getSharedPreferences(FCM_TOKEN_FILE, Context.MODE_PRIVATE);
     }
+
+    private static SharedPreferences getPushPendingFile(Context context) {
+        return context.getSharedPreferences(FCM_TOKEN_PUSH_PENDING_FILE, Context.MODE_PRIVATE);
+    }
 }
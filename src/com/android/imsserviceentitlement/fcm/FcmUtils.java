@@ -16,58 +16,29 @@
 
 package com.android.imsserviceentitlement.fcm;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 
-import androidx.annotation.WorkerThread;
-
-import java.util.concurrent.CountDownLatch;
-
 /** Convenience methods for FCM. */
 public final class FcmUtils {
     public static final String LOG_TAG = "IMSSE-FcmUtils";
 
-    private static final long TOKEN_UPDATE_WAITING_SECONDS = 25L;
-
     private FcmUtils() {}
 
-    /** Fetches FCM token, if it's not available via {@link FcmTokenStore#getToken}. */
-    @WorkerThread
-    public static void fetchFcmToken(Context context, int subId) {
+    /**
+     * Requests FCM token if it's not available via {@link FcmTokenStore#getToken}, without waiting
+     * for it. The caller proceeds without the token; once FCM delivers it, {@link
+     * FcmRegistrationService} schedules an entitlement query to send it to the server.
+     */
+    public static void fetchFcmTokenAsync(Context context, int subId) {
         if (FcmTokenStore.hasToken(context, subId)) {
             Log.d(LOG_TAG, "FCM token available.");
             return;
         }
 
-        Log.d(LOG_TAG, "FCM token unavailable. Try to update...");
-        final CountDownLatch tokenUpdated = new CountDownLatch(1);
-        final SharedPreferences.OnSharedPreferenceChangeListener listener =
-                (s, k) -> {
-                    Log.d(LOG_TAG, "FCM preference changed.");
-                    if (FcmTokenStore.hasToken(context, subId)) {
-                        tokenUpdated.countDown();
-                    }
-                };
-        FcmTokenStore.registerTokenUpdateListener(context, listener);
-
-        // Starts a JobIntentService to update FCM token by calling FCM API on a worker thread.
+        Log.d(LOG_TAG, "FCM token unavailable. Request update and send it once available.");
+        FcmTokenStore.setTokenPushPending(context, subId, true);
+        // Starts a job to update FCM token by calling FCM API on a worker thread.
         FcmRegistrationService.enqueueJob(context);
-
-        try {
-            // Wait for 25s. If FCM token update failed/timeout, we will let user see
-            // the error message returned by server. Then user can manually retry.
-            if (tokenUpdated.await(TOKEN_UPDATE_WAITING_SECONDS, SECONDS)) {
-                Log.d(LOG_TAG, "FCM token updated.");
-            } else {
-                Log.d(LOG_TAG, "FCM token update failed.");
-            }
-        } catch (InterruptedException e) {
-            // Do nothing
-            Log.d(LOG_TAG, "FCM token update interrupted.");
-        }
-        FcmTokenStore.unregisterTokenUpdateListener(context, listener);
     }
 }
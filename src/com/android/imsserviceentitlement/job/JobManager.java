@@ -21,16 +21,22 @@ import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.PersistableBundle;
 import android.telephony.SubscriptionManager;
 import android.util.ArrayMap;
 import android.util.Log;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /** Manages all scheduled jobs and provides common job scheduler. */
 public class JobManager {
@@ -46,6 +52,30 @@ public class JobManager {
     public static final String EXTRA_SLOT_ID = "SLOT_ID";
     public static final String EXTRA_RETRY_COUNT = "RETRY_COUNT";
 
+    private static final String PREFERENCE_JOB_JITTER = "PREFERENCE_JOB_JITTER";
+    /** Shared preference key for the random seed of this device's jitter. */
+    private static final String KEY_JITTER_SEED = "jitter_seed";
+
+    /**
+     * The jobs scheduled without delay, e.g. on boot up, SIM change or push notification, are
+     * spread over this window, so the devices don't query the server at the same moment. Default
+     * of {@link TelephonyUtils#KEY_QUERY_JITTER_WINDOW_MILLIS_LONG}.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_IMMEDIATE_JITTER_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    /**
+     * The delayed jobs, e.g. on VERS validity, are postponed up to this percentage of the delay.
+     * Default of {@link TelephonyUtils#KEY_QUERY_DELAY_JITTER_PERCENT_INT}.
+     */
+    @VisibleForTesting
+    static final int DEFAULT_DELAY_JITTER_PERCENT = 10;
+    /**
+     * Upper bound of the jitter of delayed jobs. Default of {@link
+     * TelephonyUtils#KEY_QUERY_MAX_DELAY_JITTER_MILLIS_LONG}.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_MAX_DELAY_JITTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
     private final Context mContext;
     private final int mSubId;
     private final JobScheduler mJobScheduler;
@@ -55,7 +85,8 @@ public class JobManager {
     @GuardedBy("JobManager.class")
     private static final ArrayMap<String, JobManager> sInstances = new ArrayMap<>();
 
-    private JobManager(Context context, ComponentName componentName, int subId) {
+    @VisibleForTesting
+    JobManager(Context context, ComponentName componentName, int subId) {
         this.mContext = context;
         this.mComponentName = componentName;
         this.mJobScheduler = context.getSystemService(JobScheduler.class);
@@ -132,14 +163,53 @@ public class JobManager {
                         + retryCount
                         + ", delay="
                         + delay);
+        long delayMillis = delay.toMillis();
         JobInfo job =
                 newJobInfoBuilder(QUERY_ENTITLEMENT_STATUS_JOB_ID, retryCount)
                         .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                        .setMinimumLatency(delay.toMillis())
+                        .setMinimumLatency(
+                                delayMillis
+                                        + getJitterMillis(
+                                                QUERY_ENTITLEMENT_STATUS_JOB_ID, delayMillis))
                         .build();
         mJobScheduler.schedule(job);
     }
 
+    /**
+     * Returns the extra delay of the job scheduled after {@code delayMillis}. The jitter is
+     * deterministic for a device, subscription and job, so the same device always takes the same
+     * position in the window while the devices spread across it evenly. The window is configured
+     * by the carrier config.
+     */
+    private long getJitterMillis(int jobId, long delayMillis) {
+        long windowMillis;
+        if (delayMillis > 0) {
+            int percent = TelephonyUtils.getQueryDelayJitterPercent(
+                    mContext, mSubId, DEFAULT_DELAY_JITTER_PERCENT);
+            long maxMillis = TelephonyUtils.getQueryMaxDelayJitterMillis(
+                    mContext, mSubId, DEFAULT_MAX_DELAY_JITTER_MILLIS);
+            windowMillis = Math.min(delayMillis / 100 * percent, maxMillis);
+        } else {
+            windowMillis = TelephonyUtils.getQueryJitterWindowMillis(
+                    mContext, mSubId, DEFAULT_IMMEDIATE_JITTER_WINDOW_MILLIS);
+        }
+        if (windowMillis <= 0) {
+            return 0;
+        }
+        long seed = getJitterSeed(mContext) * 31 + getJobIdWithSubId(jobId);
+        return (long) (windowMillis * new Random(seed).nextDouble());
+    }
+
+    /** Returns the random seed of this device, generated on first use. */
+    private static synchronized long getJitterSeed(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCE_JOB_JITTER, Context.MODE_PRIVATE);
+        if (!preferences.contains(KEY_JITTER_SEED)) {
+            preferences.edit().putLong(KEY_JITTER_SEED, new Random().nextLong()).apply();
+        }
+        return preferences.getLong(KEY_JITTER_SEED, 0);
+    }
+
     /** Registers FCM service to listen push notification once has network connection. */
     public void registerFcmOnceNetworkReady() {
         Log.d(TAG, "Schedule REGISTER_FCM_JOB_ID once has network connection.");
@@ -150,6 +220,20 @@ public class JobManager {
         mJobScheduler.schedule(job);
     }
 
+    /** Returns the jobs of this component and subscription id waiting to run. */
+    public List<JobInfo> getPendingJobs() {
+        List<JobInfo> jobs = new ArrayList<>();
+        for (JobInfo job : mJobScheduler.getAllPendingJobs()) {
+            if (mComponentName.equals(job.getService())
+                    && mSubId == job.getExtras().getInt(
+                            SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID)) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
     /**
      * Returns {@code true} if this job's subscription id still actived and still on same slot.
      * Returns {@code false} otherwise.
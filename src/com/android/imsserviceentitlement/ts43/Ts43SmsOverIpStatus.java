@@ -50,11 +50,10 @@ public abstract class Ts43SmsOverIpStatus {
     public static Ts43SmsOverIpStatus.Builder builder(XmlDoc doc) {
         return builder()
                 .setEntitlementStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                                ServiceEntitlement.APP_SMSOIP)
-                                .map(status -> Integer.parseInt(status))
-                                .orElse(EntitlementStatus.INCOMPATIBLE));
+                                ServiceEntitlement.APP_SMSOIP,
+                                EntitlementStatus.INCOMPATIBLE));
     }
 
     /** Builder of {@link Ts43SmsOverIpStatus}. */
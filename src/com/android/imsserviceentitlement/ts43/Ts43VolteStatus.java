@@ -50,11 +50,10 @@ public abstract class Ts43VolteStatus {
     public static Ts43VolteStatus.Builder builder(XmlDoc doc) {
         return builder()
                 .setEntitlementStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                                ServiceEntitlement.APP_VOLTE)
-                                .map(status -> Integer.parseInt(status))
-                                .orElse(EntitlementStatus.INCOMPATIBLE));
+                                ServiceEntitlement.APP_VOLTE,
+                                EntitlementStatus.INCOMPATIBLE));
     }
 
     /** Builder of {@link Ts43VolteStatus}. */
@@ -89,29 +89,25 @@ public abstract class Ts43VowifiStatus {
     public static Ts43VowifiStatus.Builder builder(XmlDoc doc) {
         return builder()
                 .setEntitlementStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                                ServiceEntitlement.APP_VOWIFI)
-                            .map(status -> Integer.parseInt(status))
-                            .orElse(EntitlementStatus.INCOMPATIBLE))
+                                ServiceEntitlement.APP_VOWIFI,
+                                EntitlementStatus.INCOMPATIBLE))
                 .setTcStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.TC_STATUS,
-                                ServiceEntitlement.APP_VOWIFI)
-                            .map(status -> Integer.parseInt(status))
-                            .orElse(TcStatus.NOT_REQUIRED))
+                                ServiceEntitlement.APP_VOWIFI,
+                                TcStatus.NOT_REQUIRED))
                 .setAddrStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.ADDR_STATUS,
-                                ServiceEntitlement.APP_VOWIFI)
-                            .map(status -> Integer.parseInt(status))
-                            .orElse(AddrStatus.NOT_REQUIRED))
+                                ServiceEntitlement.APP_VOWIFI,
+                                AddrStatus.NOT_REQUIRED))
                 .setProvStatus(
-                        doc.get(ResponseXmlNode.APPLICATION,
+                        doc.getInt(ResponseXmlNode.APPLICATION,
                                 ResponseXmlAttributes.PROVISION_STATUS,
-                                ServiceEntitlement.APP_VOWIFI)
-                            .map(status -> Integer.parseInt(status))
-                            .orElse(ProvStatus.NOT_REQUIRED));
+                                ServiceEntitlement.APP_VOWIFI,
+                                ProvStatus.NOT_REQUIRED));
     }
 
     /** Builder of {@link Ts43VowifiStatus}. */
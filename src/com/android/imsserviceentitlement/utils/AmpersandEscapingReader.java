@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@link Reader} which escapes bare "&" into "&amp;" while the characters flow through.
+ *
+ * <p>Workaround: some server doesn't escape "&" in XML response and that will cause XML parser
+ * failure. A "&" is kept as is if it starts one of the predefined XML entity references (e.g.
+ * "&amp;", "&lt;") or a character reference (e.g. "&#38;", "&#x26;").
+ */
+final class AmpersandEscapingReader extends Reader {
+    private static final int BUFFER_SIZE = 1024;
+    /** Max length of a reference after "&", including the ";", e.g. "#x10FFFF;". */
+    private static final int MAX_REFERENCE_LENGTH = 9;
+    private static final char[] AMP_SUFFIX = "amp;".toCharArray();
+    private static final String[] PREDEFINED_ENTITIES = {"amp", "lt", "gt", "quot", "apos"};
+
+    private final Reader mIn;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private boolean mEndOfStream;
+    /** Index of the next char of {@link #AMP_SUFFIX} to output after an escaped "&". */
+    private int mSuffixPosition = AMP_SUFFIX.length;
+
+    AmpersandEscapingReader(Reader in) {
+        mIn = in;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < len) {
+            if (mSuffixPosition < AMP_SUFFIX.length) {
+                cbuf[off + count++] = AMP_SUFFIX[mSuffixPosition++];
+                continue;
+            }
+            // Don't block for more input once some chars are available for the caller.
+            if (mPosition == mLimit && (count > 0 || !fill(1))) {
+                break;
+            }
+            char c = mBuffer[mPosition++];
+            cbuf[off + count++] = c;
+            if (c == '&' && !startsReference()) {
+                mSuffixPosition = 0;
+            }
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /** Returns {@code true} if the chars following the consumed "&" form a valid reference. */
+    private boolean startsReference() throws IOException {
+        fill(MAX_REFERENCE_LENGTH);
+        int end = Math.min(mLimit, mPosition + MAX_REFERENCE_LENGTH);
+        for (int i = mPosition; i < end; i++) {
+            if (mBuffer[i] == ';') {
+                return isReference(mPosition, i);
+            }
+        }
+        return false;
+    }
+
+    /** Returns {@code true} if the buffer in range [start, end) is a valid reference name. */
+    private boolean isReference(int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        if (mBuffer[start] != '#') {
+            for (String entity : PREDEFINED_ENTITIES) {
+                if (regionMatches(start, end, entity)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hex = start + 1 < end && mBuffer[start + 1] == 'x';
+        int digitsStart = hex ? start + 2 : start + 1;
+        if (digitsStart == end) {
+            return false;
+        }
+        for (int i = digitsStart; i < end; i++) {
+            if (Character.digit(mBuffer[i], hex ? 16 : 10) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (mBuffer[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads from the underlying reader until at least {@code count} chars are buffered or the end
+     * of stream is reached. Returns {@code true} if any char is buffered.
+     */
+    private boolean fill(int count) throws IOException {
+        if (mLimit - mPosition >= count || mEndOfStream) {
+            return mLimit > mPosition;
+        }
+        System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+        mLimit -= mPosition;
+        mPosition = 0;
+        while (mLimit < count) {
+            int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read < 0) {
+                mEndOfStream = true;
+                break;
+            }
+            mLimit += read;
+        }
+        return mLimit > mPosition;
+    }
+}
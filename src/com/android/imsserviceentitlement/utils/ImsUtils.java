@@ -19,14 +19,19 @@ package com.android.imsserviceentitlement.utils;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.stub.ImsConfigImplBase;
 import android.util.Log;
 import android.util.SparseArray;
 
 import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.imsserviceentitlement.utils.ProvisioningResult.Outcome;
 
 /** A helper class for IMS relevant APIs with subscription id. */
 public class ImsUtils {
@@ -37,6 +42,10 @@ public class ImsUtils {
     private final ProvisioningManager mProvisioningManager;
     private final int mSubId;
 
+    /** Increased by each {@link #applyProvisioning}, so a newer call stops the older's retries. */
+    @GuardedBy("this")
+    private int mProvisioningGeneration;
+
     /**
      * Turns Volte provisioning status ON/OFF.
      * Value is in Integer format. ON (1), OFF(0).
@@ -58,15 +67,31 @@ public class ImsUtils {
      */
     private static final int KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE = 28;
 
+    /** The delay before retrying the failed provisioning values, to let the IMS stack settle. */
+    @VisibleForTesting
+    static final long PROVISIONING_RETRY_DELAY_MILLIS = 500;
+
     // Cache subscription id associated {@link ImsUtils} objects for reusing.
     @GuardedBy("ImsUtils.class")
     private static SparseArray<ImsUtils> sInstances = new SparseArray<ImsUtils>();
 
     private ImsUtils(Context context, int subId) {
-        mCarrierConfigManager =
-                (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        mImsMmTelManager = getImsMmTelManager(context, subId);
-        mProvisioningManager = getProvisioningManager(subId);
+        this(
+                (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE),
+                getImsMmTelManager(context, subId),
+                getProvisioningManager(subId),
+                subId);
+    }
+
+    @VisibleForTesting
+    ImsUtils(
+            CarrierConfigManager carrierConfigManager,
+            ImsMmTelManager imsMmTelManager,
+            ProvisioningManager provisioningManager,
+            int subId) {
+        mCarrierConfigManager = carrierConfigManager;
+        mImsMmTelManager = imsMmTelManager;
+        mProvisioningManager = provisioningManager;
         this.mSubId = subId;
     }
 
@@ -94,43 +119,97 @@ public class ImsUtils {
         }
     }
 
-    /** Sets whether VoWiFi is provisioned. */
-    public void setVowifiProvisioned(boolean value) {
-        try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
-        } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+    /**
+     * Applies the provisioning {@code state} of all the services in one pass, and retries the
+     * failed values up to {@code maxRetries} times after a short delay, unless called again
+     * meanwhile. Values already set in the IMS stack are skipped, as setting an unchanged value
+     * may trigger IMS re-registration. The IMS stack is read on each call, it may have been reset
+     * since the last one; callers only call this when the entitlement configuration changed or
+     * may not be applied.
+     */
+    public ProvisioningResult applyProvisioning(ProvisioningState state, int maxRetries) {
+        long startMillis = SystemClock.elapsedRealtime();
+        int generation;
+        synchronized (this) {
+            generation = ++mProvisioningGeneration;
+        }
+        Outcome vowifiOutcome = null;
+        Outcome volteOutcome = null;
+        Outcome smsoipOutcome = null;
+        int attempts = 0;
+        do {
+            // Wait without the lock, so other callers for this subscription are not blocked.
+            if (attempts > 0 && !sleepBeforeRetry()) {
+                break;
+            }
+            synchronized (this) {
+                if (attempts > 0 && generation != mProvisioningGeneration) {
+                    // Retrying would overwrite the values of the newer call.
+                    Log.d(TAG, "applyProvisioning superseded by a newer call.");
+                    break;
+                }
+                attempts++;
+                if (vowifiOutcome == null || vowifiOutcome == Outcome.FAILED) {
+                    vowifiOutcome = setProvisioned(
+                            KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, state.isVowifiProvisioned());
+                }
+                if (volteOutcome == null || volteOutcome == Outcome.FAILED) {
+                    volteOutcome = setProvisioned(
+                            KEY_VOLTE_PROVISIONING_STATUS, state.isVolteProvisioned());
+                }
+                if (smsoipOutcome == null || smsoipOutcome == Outcome.FAILED) {
+                    smsoipOutcome = setProvisioned(
+                            KEY_SMS_OVER_IP_ENABLED, state.isSmsoipProvisioned());
+                }
+            }
+        } while (attempts <= maxRetries
+                && (vowifiOutcome == Outcome.FAILED
+                        || volteOutcome == Outcome.FAILED
+                        || smsoipOutcome == Outcome.FAILED));
+
+        ProvisioningResult result = ProvisioningResult.create(
+                vowifiOutcome,
+                volteOutcome,
+                smsoipOutcome,
+                attempts,
+                SystemClock.elapsedRealtime() - startMillis);
+        if (!result.isSuccessful()) {
+            Log.w(TAG, "applyProvisioning failed: " + result);
         }
+        return result;
     }
 
-    /** Sets whether Volte is provisioned. */
-    public void setVolteProvisioned(boolean value) {
+    /** Waits before a retry pass. Returns {@code false} if interrupted. */
+    private static boolean sleepBeforeRetry() {
         try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_VOLTE_PROVISIONING_STATUS, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
-        } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+            Thread.sleep(PROVISIONING_RETRY_DELAY_MILLIS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
-    /** Sets whether SMSoIP is provisioned. */
-    public void setSmsoipProvisioned(boolean value) {
+    /** Sets the provisioning {@code key} to {@code provisioned}, if not set to it already. */
+    @GuardedBy("this")
+    private Outcome setProvisioned(int key, boolean provisioned) {
+        int value = provisioned
+                ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
+                : ProvisioningManager.PROVISIONING_VALUE_DISABLED;
         try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_SMS_OVER_IP_ENABLED, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+            if (mProvisioningManager.getProvisioningIntValue(key) == value) {
+                return Outcome.UNCHANGED;
+            }
+            int result = mProvisioningManager.setProvisioningIntValue(key, value);
+            if (result == ImsConfigImplBase.CONFIG_RESULT_SUCCESS) {
+                return Outcome.APPLIED;
+            }
+            Log.w(TAG, "setProvisioningIntValue failed: key=" + key + " result=" + result);
         } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+            // Possible exception should be NullPointerException or RemoteException.
+            Log.w(TAG, "setProvisioningIntValue failed: key=" + key, e);
         }
+        return Outcome.FAILED;
     }
 
     /** Disables WFC and reset WFC mode to carrier default value */
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.imsserviceentitlement.utils;
+
+import com.google.auto.value.AutoValue;
+
+/** The result of applying a {@link ProvisioningState} by {@link ImsUtils}. */
+@AutoValue
+public abstract class ProvisioningResult {
+    /** The outcome of a provisioning value. */
+    public enum Outcome {
+        /** The IMS stack already had the value; nothing was set. */
+        UNCHANGED,
+        /** The value was set to the IMS stack. */
+        APPLIED,
+        /** The value could not be set after all attempts. */
+        FAILED,
+    }
+
+    /** The outcome of the VoWiFi provisioning value. */
+    public abstract Outcome getVowifiOutcome();
+
+    /** The outcome of the VoLTE provisioning value. */
+    public abstract Outcome getVolteOutcome();
+
+    /** The outcome of the SMSoIP provisioning value. */
+    public abstract Outcome getSmsoipOutcome();
+
+    /** The number of passes made, including the retries of failed values. */
+    public abstract int getAttempts();
+
+    /** The time taken to apply all the values, in milliseconds. */
+    public abstract long getLatencyMillis();
+
+    /** Returns {@code true} if no value failed. */
+    public boolean isSuccessful() {
+        return getVowifiOutcome() != Outcome.FAILED
+                && getVolteOutcome() != Outcome.FAILED
+                && getSmsoipOutcome() != Outcome.FAILED;
+    }
+
+    /** Returns a result of the given outcomes. */
+    public static ProvisioningResult create(
+            Outcome vowifiOutcome,
+            Outcome volteOutcome,
+            Outcome smsoipOutcome,
+            int attempts,
+            long latencyMillis) {
+        return new AutoValue_ProvisioningResult(
+                vowifiOutcome, volteOutcome, smsoipOutcome, attempts, latencyMillis);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.imsserviceentitlement.utils;
+
+import com.google.auto.value.AutoValue;
+
+/** The desired provisioning state of the IMS services, applied by {@link ImsUtils} at once. */
+@AutoValue
+public abstract class ProvisioningState {
+    /** Whether VoWiFi is provisioned. */
+    public abstract boolean isVowifiProvisioned();
+
+    /** Whether VoLTE is provisioned. */
+    public abstract boolean isVolteProvisioned();
+
+    /** Whether SMSoIP is provisioned. */
+    public abstract boolean isSmsoipProvisioned();
+
+    /** Returns the provisioning state of the given services. */
+    public static ProvisioningState create(
+            boolean vowifiProvisioned, boolean volteProvisioned, boolean smsoipProvisioned) {
+        return new AutoValue_ProvisioningState(
+                vowifiProvisioned, volteProvisioned, smsoipProvisioned);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.android.imsserviceentitlement.utils.Executors.getDirectExecutor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.List;
+
+/**
+ * Keeps the active subscriptions and their slots in memory, so they are read from {@link
+ * SubscriptionManager} once per subscription change instead of once per lookup.
+ */
+public final class SubscriptionRegistry {
+    private static final String TAG = "IMSSE-SubscriptionRegistry";
+
+    private static final Object sLock = new Object();
+    /** Slot index of each active subscription id; {@code null} if not loaded since a change. */
+    @GuardedBy("sLock")
+    @Nullable
+    private static ImmutableMap<Integer, Integer> sSlotIds;
+    /** Increased on each change, so a load racing with the change is not kept. */
+    @GuardedBy("sLock")
+    private static int sGeneration;
+    /** Whether the listener is registered; subscriptions are only cached from then on. */
+    @GuardedBy("sLock")
+    private static boolean sListening;
+    @GuardedBy("sLock")
+    private static boolean sListenRequested;
+
+    private SubscriptionRegistry() {}
+
+    /** Returns {@code true} if the {@code subId} points to an active SIM. */
+    public static boolean isActiveSubId(Context context, int subId) {
+        return getSlotIds(context).containsKey(subId);
+    }
+
+    /**
+     * Returns the slot index of the active {@code subId}; {@link
+     * SubscriptionManager#INVALID_SIM_SLOT_INDEX} otherwise.
+     */
+    public static int getSlotId(Context context, int subId) {
+        return getSlotIds(context).getOrDefault(subId, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+    }
+
+    /** Returns the ids of the active subscriptions. */
+    public static ImmutableSet<Integer> getActiveSubIds(Context context) {
+        return getSlotIds(context).keySet();
+    }
+
+    /** Drops the cached subscriptions; they are loaded again on next lookup. */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sSlotIds = null;
+            sGeneration++;
+        }
+    }
+
+    /** Forgets the registered listener and the cached subscriptions. */
+    @VisibleForTesting
+    static void resetForTesting() {
+        synchronized (sLock) {
+            sListening = false;
+            sListenRequested = false;
+        }
+        invalidate();
+    }
+
+    private static ImmutableMap<Integer, Integer> getSlotIds(Context context) {
+        SubscriptionManager subscriptionManager =
+                context.getSystemService(SubscriptionManager.class);
+        int generation;
+        synchronized (sLock) {
+            if (!sListenRequested) {
+                sListenRequested = true;
+                // Lookups come from any thread, e.g. the receiver executor or a binder thread, but
+                // the listener may create a Handler on the looper of the thread creating it.
+                new Handler(Looper.getMainLooper())
+                        .post(() -> startListening(subscriptionManager));
+            }
+            if (sSlotIds != null) {
+                return sSlotIds;
+            }
+            generation = sGeneration;
+        }
+
+        ImmutableMap<Integer, Integer> slotIds = loadSlotIds(subscriptionManager);
+        synchronized (sLock) {
+            // A change before the listener is registered would be missed, so don't cache yet.
+            if (sListening && generation == sGeneration) {
+                sSlotIds = slotIds;
+            }
+        }
+        return slotIds;
+    }
+
+    private static void startListening(SubscriptionManager subscriptionManager) {
+        subscriptionManager.addOnSubscriptionsChangedListener(
+                getDirectExecutor(), new SubscriptionsChangedListener());
+        synchronized (sLock) {
+            sListening = true;
+        }
+        // Don't cache a load started before the listener was registered.
+        invalidate();
+    }
+
+    private static ImmutableMap<Integer, Integer> loadSlotIds(
+            SubscriptionManager subscriptionManager) {
+        List<SubscriptionInfo> infos = subscriptionManager.getActiveSubscriptionInfoList();
+        if (infos == null) {
+            return ImmutableMap.of();
+        }
+
+        ImmutableMap.Builder<Integer, Integer> builder = ImmutableMap.builder();
+        for (SubscriptionInfo info : infos) {
+            builder.put(info.getSubscriptionId(), info.getSimSlotIndex());
+        }
+        ImmutableMap<Integer, Integer> slotIds = builder.build();
+        Log.d(TAG, "Active subscriptions (subId=slotId): " + slotIds);
+        return slotIds;
+    }
+
+    private static final class SubscriptionsChangedListener
+            extends OnSubscriptionsChangedListener {
+        @Override
+        public void onSubscriptionsChanged() {
+            invalidate();
+        }
+    }
+}
@@ -22,19 +22,44 @@ import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
-import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.google.common.collect.ImmutableSet;
 
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** This class implements Telephony helper methods. */
 public class TelephonyUtils {
     public static final String TAG = "IMSSE-TelephonyUtils";
 
+    /**
+     * Carrier config key of the window in milliseconds over which the entitlement queries
+     * scheduled without delay are spread. Not set or negative means the app default.
+     */
+    public static final String KEY_QUERY_JITTER_WINDOW_MILLIS_LONG =
+            "imsserviceentitlement.query_jitter_window_millis_long";
+    /**
+     * Carrier config key of the jitter of delayed entitlement queries, in percent of the delay.
+     * Not set or negative means the app default.
+     */
+    public static final String KEY_QUERY_DELAY_JITTER_PERCENT_INT =
+            "imsserviceentitlement.query_delay_jitter_percent_int";
+    /**
+     * Carrier config key of the upper bound in milliseconds of the jitter of delayed entitlement
+     * queries. Not set or negative means the app default.
+     */
+    public static final String KEY_QUERY_MAX_DELAY_JITTER_MILLIS_LONG =
+            "imsserviceentitlement.query_max_delay_jitter_millis_long";
+
+    /**
+     * Entitlement related carrier configs per subId, dropped on {@link
+     * CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED} by {@link #invalidateCarrierConfig}.
+     */
+    private static final Map<Integer, CarrierConfig> sCarrierConfigs = new ConcurrentHashMap<>();
+
     private final ConnectivityManager mConnectivityManager;
     private final TelephonyManager mTelephonyManager;
 
@@ -103,11 +128,7 @@ public class TelephonyUtils {
      * otherwise.
      */
     public static boolean isActivedSubId(Context context, int subId) {
-        SubscriptionManager subscriptionManager =
-                (SubscriptionManager) context.getSystemService(
-                        Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-        SubscriptionInfo subInfo = subscriptionManager.getActiveSubscriptionInfo(subId);
-        return subInfo != null;
+        return SubscriptionRegistry.isActiveSubId(context, subId);
     }
 
     /**
@@ -115,37 +136,53 @@ public class TelephonyUtils {
      * SubscriptionManager#INVALID_SIM_SLOT_INDEX} otherwise.
      */
     public static int getSlotId(Context context, int subId) {
-        SubscriptionManager subscriptionManager =
-                (SubscriptionManager) context.getSystemService(
-                        Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-        SubscriptionInfo subInfo = subscriptionManager.getActiveSubscriptionInfo(subId);
-        if (subInfo != null) {
-            return subInfo.getSimSlotIndex();
+        int slotId = SubscriptionRegistry.getSlotId(context, subId);
+        if (slotId == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            Log.d(TAG, "Can't find actived subscription for " + subId);
         }
-        Log.d(TAG, "Can't find actived subscription for " + subId);
-        return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
+        return slotId;
     }
 
-    /** Returns carrier config for the {@code subId}. */
-    private static PersistableBundle getConfigForSubId(Context context, int subId) {
+    /**
+     * Returns the entitlement related carrier configs for the {@code subId}, cached until {@link
+     * #invalidateCarrierConfig} is called.
+     */
+    private static CarrierConfig getCarrierConfig(Context context, int subId) {
+        CarrierConfig cached = sCarrierConfigs.get(subId);
+        if (cached != null) {
+            return cached;
+        }
+
         CarrierConfigManager carrierConfigManager =
                 context.getSystemService(CarrierConfigManager.class);
         PersistableBundle carrierConfig = carrierConfigManager.getConfigForSubId(subId);
         if (carrierConfig == null) {
+            // Not loaded yet; don't cache the default so the real one is read next time.
             Log.d(TAG, "getDefaultConfig");
-            carrierConfig = CarrierConfigManager.getDefaultConfig();
+            return new CarrierConfig(CarrierConfigManager.getDefaultConfig());
+        }
+        CarrierConfig config = new CarrierConfig(carrierConfig);
+        sCarrierConfigs.put(subId, config);
+        return config;
+    }
+
+    /**
+     * Drops the cached carrier configs of the {@code subId}, or of all subscriptions if {@code
+     * subId} is invalid. Called on {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}.
+     */
+    public static void invalidateCarrierConfig(int subId) {
+        if (SubscriptionManager.isValidSubscriptionId(subId)) {
+            sCarrierConfigs.remove(subId);
+        } else {
+            sCarrierConfigs.clear();
         }
-        return carrierConfig;
     }
 
     /**
      * Returns FCM sender id for the {@code subId} or a default empty string if it is not available.
      */
     public static String getFcmSenderId(Context context, int subId) {
-        return getConfigForSubId(context, subId).getString(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING,
-                ""
-        );
+        return getCarrierConfig(context, subId).mFcmSenderId;
     }
 
     /**
@@ -153,10 +190,7 @@ public class TelephonyUtils {
      * a default empty string if it is not available.
      */
     public static String getEntitlementServerUrl(Context context, int subId) {
-        return getConfigForSubId(context, subId).getString(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_ENTITLEMENT_SERVER_URL_STRING,
-                ""
-        );
+        return getCarrierConfig(context, subId).mEntitlementServerUrl;
     }
 
     /**
@@ -164,24 +198,46 @@ public class TelephonyUtils {
      * or false if it doesn't need to do.
      */
     public static boolean isImsProvisioningRequired(Context context, int subId) {
-        return getConfigForSubId(context, subId).getBoolean(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL,
-                false
-        );
+        return getCarrierConfig(context, subId).mImsProvisioningRequired;
+    }
+
+    /**
+     * Returns the {@link #KEY_QUERY_JITTER_WINDOW_MILLIS_LONG} carrier config for the {@code
+     * subId}, or {@code defaultMillis} if not configured.
+     */
+    public static long getQueryJitterWindowMillis(Context context, int subId, long defaultMillis) {
+        long windowMillis = getCarrierConfig(context, subId).mQueryJitterWindowMillis;
+        return windowMillis >= 0 ? windowMillis : defaultMillis;
+    }
+
+    /**
+     * Returns the {@link #KEY_QUERY_DELAY_JITTER_PERCENT_INT} carrier config for the {@code
+     * subId}, or {@code defaultPercent} if not configured.
+     */
+    public static int getQueryDelayJitterPercent(Context context, int subId, int defaultPercent) {
+        int percent = getCarrierConfig(context, subId).mQueryDelayJitterPercent;
+        return percent >= 0 ? percent : defaultPercent;
+    }
+
+    /**
+     * Returns the {@link #KEY_QUERY_MAX_DELAY_JITTER_MILLIS_LONG} carrier config for the {@code
+     * subId}, or {@code defaultMillis} if not configured.
+     */
+    public static long getQueryMaxDelayJitterMillis(
+            Context context, int subId, long defaultMillis) {
+        long maxMillis = getCarrierConfig(context, subId).mQueryMaxDelayJitterMillis;
+        return maxMillis >= 0 ? maxMillis : defaultMillis;
+    }
+
+    /** Returns the ids of the active subscriptions. */
+    public static ImmutableSet<Integer> getActiveSubIds(Context context) {
+        return SubscriptionRegistry.getActiveSubIds(context);
     }
 
     /** Returns SubIds which support FCM. */
     public static ImmutableSet<Integer> getSubIdsWithFcmSupported(Context context) {
-        SubscriptionManager subscriptionManager =
-                context.getSystemService(SubscriptionManager.class);
-        List<SubscriptionInfo> infos = subscriptionManager.getActiveSubscriptionInfoList();
-        if (infos == null) {
-            return ImmutableSet.of();
-        }
-
         ImmutableSet.Builder<Integer> builder = ImmutableSet.builder();
-        for (SubscriptionInfo info : infos) {
-            int subId = info.getSubscriptionId();
+        for (int subId : getActiveSubIds(context)) {
             if (isFcmPushNotificationSupported(context, subId)) {
                 builder.add(subId);
             }
@@ -192,4 +248,28 @@ public class TelephonyUtils {
     private static boolean isFcmPushNotificationSupported(Context context, int subId) {
         return !TelephonyUtils.getFcmSenderId(context, subId).isEmpty();
     }
+
+    /** The carrier configs used by this app, read out of the {@link PersistableBundle} once. */
+    private static final class CarrierConfig {
+        final String mFcmSenderId;
+        final String mEntitlementServerUrl;
+        final boolean mImsProvisioningRequired;
+        final long mQueryJitterWindowMillis;
+        final int mQueryDelayJitterPercent;
+        final long mQueryMaxDelayJitterMillis;
+
+        CarrierConfig(PersistableBundle bundle) {
+            mFcmSenderId = bundle.getString(
+                    CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING, "");
+            mEntitlementServerUrl = bundle.getString(
+                    CarrierConfigManager.ImsServiceEntitlement.KEY_ENTITLEMENT_SERVER_URL_STRING,
+                    "");
+            mImsProvisioningRequired = bundle.getBoolean(
+                    CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL, false);
+            mQueryJitterWindowMillis = bundle.getLong(KEY_QUERY_JITTER_WINDOW_MILLIS_LONG, -1);
+            mQueryDelayJitterPercent = bundle.getInt(KEY_QUERY_DELAY_JITTER_PERCENT_INT, -1);
+            mQueryMaxDelayJitterMillis =
+                    bundle.getLong(KEY_QUERY_MAX_DELAY_JITTER_MILLIS_LONG, -1);
+        }
+    }
 }
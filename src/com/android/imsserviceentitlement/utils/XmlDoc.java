@@ -22,10 +22,15 @@ import static com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNo
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Xml;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.imsserviceentitlement.debug.DebugUtils;
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlAttributes;
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNode;
+import com.android.libraries.entitlement.ServiceEntitlement;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -34,11 +39,23 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -52,23 +69,268 @@ public class XmlDoc {
     private static final String NODE_PARM = "parm";
     private static final String PARM_NAME = "name";
     private static final String PARM_VALUE = "value";
+    private static final String CHARACTERISTIC_TYPE = "type";
+
+    /**
+     * Whether to parse the response with the DOM parser instead of the streaming pull parser; only
+     * kept for comparing the two implementations.
+     */
+    @VisibleForTesting
+    static boolean sUseDomParser = false;
+
+    /** Known nodes indexed for lookup without building a key; see {@link #mIndex}. */
+    private static final String[] INDEXED_NODES = {
+        ResponseXmlNode.TOKEN, ResponseXmlNode.VERS, ResponseXmlNode.APPLICATION
+    };
+    /** Known AppIDs of {@link ResponseXmlNode#APPLICATION} indexed after {@link #INDEXED_NODES}. */
+    private static final String[] INDEXED_APP_IDS = {
+        ServiceEntitlement.APP_VOLTE, ServiceEntitlement.APP_VOWIFI, ServiceEntitlement.APP_SMSOIP
+    };
+    /** Known attributes indexed for each node. */
+    private static final String[] INDEXED_ATTRIBUTES = {
+        ResponseXmlAttributes.TOKEN,
+        ResponseXmlAttributes.APP_ID,
+        ResponseXmlAttributes.ENTITLEMENT_STATUS,
+        ResponseXmlAttributes.ADDR_STATUS,
+        ResponseXmlAttributes.TC_STATUS,
+        ResponseXmlAttributes.PROVISION_STATUS,
+        ResponseXmlAttributes.SERVER_FLOW_URL,
+        ResponseXmlAttributes.SERVER_FLOW_USER_DATA,
+        ResponseXmlAttributes.VERSION,
+        ResponseXmlAttributes.VALIDITY
+    };
+    /** Position of each name in the arrays above, for lookup without scanning them. */
+    private static final Map<String, Integer> NODE_INDEX = toIndexMap(INDEXED_NODES);
+    private static final Map<String, Integer> APP_ID_INDEX = toIndexMap(INDEXED_APP_IDS);
+    private static final Map<String, Integer> ATTRIBUTE_INDEX = toIndexMap(INDEXED_ATTRIBUTES);
+    private static final int INDEX_SIZE =
+            (INDEXED_NODES.length + INDEXED_APP_IDS.length) * INDEXED_ATTRIBUTES.length;
+
+    /** Whether a non-indexed param which is not a number has been logged; logged only once. */
+    private static final AtomicBoolean sNotNumberLogged = new AtomicBoolean();
+
+    /** Version of the binary format of {@link #toSnapshot}. */
+    private static final int SNAPSHOT_VERSION = 1;
 
     private final Map<String, Map<String, String>> mNodesMap = new ArrayMap<>();
 
+    /**
+     * Param values of the known nodes and attributes, at {@code nodeIndex *
+     * INDEXED_ATTRIBUTES.length + attributeIndex}. Built once after parsing so that looking up a
+     * known param doesn't allocate; other params fall back to {@link #mNodesMap}.
+     */
+    @SuppressWarnings("unchecked")
+    private final Optional<String>[] mIndex = (Optional<String>[]) new Optional<?>[INDEX_SIZE];
+    /** Param values of {@link #mIndex} parsed as numbers, valid only if {@link #mIsNumber}. */
+    private final long[] mNumberIndex = new long[INDEX_SIZE];
+    private final boolean[] mIsNumber = new boolean[INDEX_SIZE];
+
     public XmlDoc(String responseBody) {
         parseXmlResponse(responseBody);
+        buildIndex();
+    }
+
+    private XmlDoc(Map<String, Map<String, String>> nodesMap) {
+        mNodesMap.putAll(nodesMap);
+        buildIndex();
+    }
+
+    /**
+     * Returns the parsed nodes in a compact, versioned binary format which can be restored by
+     * {@link #fromSnapshot} without parsing the XML again.
+     */
+    public byte[] toSnapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(mNodesMap.size());
+            for (Map.Entry<String, Map<String, String>> node : mNodesMap.entrySet()) {
+                writeString(out, node.getKey());
+                out.writeInt(node.getValue().size());
+                for (Map.Entry<String, String> param : node.getValue().entrySet()) {
+                    writeString(out, param.getKey());
+                    writeString(out, param.getValue());
+                }
+            }
+        } catch (IOException e) {
+            // Should never happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the {@link XmlDoc} restored from {@code snapshot} created by {@link #toSnapshot}.
+     *
+     * @throws IOException if the snapshot is malformed or of an unsupported version.
+     */
+    public static XmlDoc fromSnapshot(byte[] snapshot) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        int nodeCount = readCount(in);
+        Map<String, Map<String, String>> nodesMap = new ArrayMap<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            String node = readString(in);
+            int paramCount = readCount(in);
+            Map<String, String> paramsMap = new ArrayMap<>(paramCount);
+            for (int j = 0; j < paramCount; j++) {
+                paramsMap.put(readString(in), readString(in));
+            }
+            nodesMap.put(node, paramsMap);
+        }
+        return new XmlDoc(nodesMap);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads a count of items, each of at least one byte, from the rest of the snapshot. */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Malformed snapshot, count: " + count);
+        }
+        return count;
     }
 
     /** Returns param value for given node and key. */
     public Optional<String> get(String node, String key, @Nullable String appId) {
+        int nodeIndex = indexOfNode(node, appId);
+        int attributeIndex = indexOf(ATTRIBUTE_INDEX, key);
+        if (nodeIndex >= 0 && attributeIndex >= 0) {
+            return mIndex[nodeIndex * INDEXED_ATTRIBUTES.length + attributeIndex];
+        }
+
         Map<String, String> paramsMap = mNodesMap.get(combineKeyWithAppId(node, appId));
         return Optional.ofNullable(paramsMap == null ? null : paramsMap.get(key));
     }
 
-    private String combineKeyWithAppId(String node, @Nullable String appId) {
+    /**
+     * Returns param value for given node and key as an {@code int}, or {@code defaultValue} if the
+     * param doesn't exist or isn't a valid {@code int}.
+     */
+    public int getInt(String node, String key, @Nullable String appId, int defaultValue) {
+        long value = getLong(node, key, appId, Long.MIN_VALUE);
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE
+                ? (int) value
+                : defaultValue;
+    }
+
+    /**
+     * Returns param value for given node and key as a {@code long}, or {@code defaultValue} if the
+     * param doesn't exist or isn't a valid {@code long}.
+     */
+    public long getLong(String node, String key, @Nullable String appId, long defaultValue) {
+        int nodeIndex = indexOfNode(node, appId);
+        int attributeIndex = indexOf(ATTRIBUTE_INDEX, key);
+        if (nodeIndex >= 0 && attributeIndex >= 0) {
+            int index = nodeIndex * INDEXED_ATTRIBUTES.length + attributeIndex;
+            return mIsNumber[index] ? mNumberIndex[index] : defaultValue;
+        }
+
+        Optional<String> value = get(node, key, appId);
+        if (value.isPresent()) {
+            try {
+                return Long.parseLong(value.get());
+            } catch (NumberFormatException e) {
+                if (sNotNumberLogged.compareAndSet(false, true)) {
+                    Log.w(TAG, "Param " + key + " of " + node + " is not a number.");
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /** Returns {@code true} if {@code obj} is a {@link XmlDoc} with the same params. */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof XmlDoc)) {
+            return false;
+        }
+        return mNodesMap.equals(((XmlDoc) obj).mNodesMap);
+    }
+
+    @Override
+    public int hashCode() {
+        return mNodesMap.hashCode();
+    }
+
+    private static String combineKeyWithAppId(String node, @Nullable String appId) {
         return APPLICATION.equals(node) && !TextUtils.isEmpty(appId) ? node + "_" + appId : node;
     }
 
+    /** Returns the index of the node in {@link #mIndex}, or -1 if the node is not indexed. */
+    private static int indexOfNode(String node, @Nullable String appId) {
+        if (APPLICATION.equals(node) && !TextUtils.isEmpty(appId)) {
+            int appIdIndex = indexOf(APP_ID_INDEX, appId);
+            return appIdIndex < 0 ? -1 : INDEXED_NODES.length + appIdIndex;
+        }
+        return indexOf(NODE_INDEX, node);
+    }
+
+    private static int indexOf(Map<String, Integer> index, String name) {
+        Integer position = index.get(name);
+        return position == null ? -1 : position;
+    }
+
+    private static Map<String, Integer> toIndexMap(String[] names) {
+        Map<String, Integer> index = new ArrayMap<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            index.put(names[i], i);
+        }
+        return index;
+    }
+
+    /** Returns {@code false} for values which obviously are not numbers, e.g. token or URL. */
+    private static boolean mayBeNumber(@Nullable String value) {
+        if (TextUtils.isEmpty(value)) {
+            return false;
+        }
+        char first = value.charAt(0);
+        return (first >= '0' && first <= '9') || first == '-' || first == '+';
+    }
+
+    private void buildIndex() {
+        for (int nodeIndex = 0; nodeIndex < INDEXED_NODES.length + INDEXED_APP_IDS.length;
+                nodeIndex++) {
+            Map<String, String> paramsMap =
+                    mNodesMap.get(
+                            nodeIndex < INDEXED_NODES.length
+                                    ? INDEXED_NODES[nodeIndex]
+                                    : combineKeyWithAppId(
+                                            APPLICATION,
+                                            INDEXED_APP_IDS[nodeIndex - INDEXED_NODES.length]));
+            for (int i = 0; i < INDEXED_ATTRIBUTES.length; i++) {
+                int index = nodeIndex * INDEXED_ATTRIBUTES.length + i;
+                String value = paramsMap == null ? null : paramsMap.get(INDEXED_ATTRIBUTES[i]);
+                mIndex[index] = Optional.ofNullable(value);
+                if (mayBeNumber(value)) {
+                    try {
+                        mNumberIndex[index] = Long.parseLong(value);
+                        mIsNumber[index] = true;
+                    } catch (NumberFormatException e) {
+                        // Malformed number; getInt/getLong return the default.
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Parses the response body as per format defined in TS.43 2.7.2 New Characteristics for
      * XML-Based Document.
@@ -78,19 +340,104 @@ public class XmlDoc {
             return;
         }
 
-        // Workaround: some server doesn't escape "&" in XML response and that will cause XML parser
-        // failure later.
-        // This is a quick impl of escaping w/o intorducing a ton of new dependencies.
-        responseBody = responseBody.replace("&", "&amp;").replace("&amp;amp;", "&amp;");
+        // Resolved once per document; each lookup reads the build type and a system property.
+        boolean piiLoggable = DebugUtils.isPiiLoggable();
+        if (sUseDomParser) {
+            parseXmlResponseWithDom(responseBody, piiLoggable);
+        } else {
+            parseXmlResponseWithPullParser(responseBody, piiLoggable);
+        }
+    }
+
+    /**
+     * Parses the response in a single pass, filling the nodes map while reading. The result is
+     * identical to {@link #parseXmlResponseWithDom}: a parm belongs to every characteristic
+     * enclosing it, characteristics are stored in document order except those without type, and
+     * nothing is stored if the document is malformed.
+     */
+    private void parseXmlResponseWithPullParser(String responseBody, boolean piiLoggable) {
+        List<Characteristic> characteristics = new ArrayList<>();
+        Deque<Characteristic> openCharacteristics = new ArrayDeque<>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new AmpersandEscapingReader(new StringReader(responseBody)));
+            for (int eventType = parser.getEventType();
+                    eventType != XmlPullParser.END_DOCUMENT;
+                    eventType = parser.next()) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (NODE_CHARACTERISTIC.equals(parser.getName())) {
+                        Characteristic characteristic =
+                                new Characteristic(parser.getAttributeValue(
+                                        null, CHARACTERISTIC_TYPE));
+                        if (piiLoggable) {
+                            Log.d(
+                                    TAG,
+                                    "parseAuthenticateResponse() node name="
+                                            + parser.getName()
+                                            + " node value="
+                                            + characteristic.mType);
+                        }
+                        characteristics.add(characteristic);
+                        openCharacteristics.push(characteristic);
+                    } else if (NODE_PARM.equals(parser.getName())) {
+                        parseParam(parser, openCharacteristics, piiLoggable);
+                    }
+                } else if (eventType == XmlPullParser.END_TAG
+                        && NODE_CHARACTERISTIC.equals(parser.getName())) {
+                    openCharacteristics.pop();
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.e(TAG, "Failed to parse XML node. " + e);
+            return;
+        }
+
+        for (Characteristic characteristic : characteristics) {
+            if (characteristic.mType == null) {
+                // Can't be looked up by get(); its params still belong to enclosing ones.
+                continue;
+            }
+            mNodesMap.put(
+                    combineKeyWithAppId(
+                            characteristic.mType, characteristic.mParams.get(APP_ID)),
+                    characteristic.mParams);
+        }
+    }
+
+    private static void parseParam(
+            XmlPullParser parser, Deque<Characteristic> openCharacteristics, boolean piiLoggable) {
+        String name = "";
+        String value = "";
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            if (PARM_NAME.equals(parser.getAttributeName(i))) {
+                name = parser.getAttributeValue(i);
+            } else if (PARM_VALUE.equals(parser.getAttributeName(i))) {
+                value = parser.getAttributeValue(i);
+            }
+        }
+        if (TextUtils.isEmpty(name) || TextUtils.isEmpty(value)) {
+            return;
+        }
+        for (Characteristic characteristic : openCharacteristics) {
+            characteristic.mParams.put(name, value);
+        }
+
+        if (piiLoggable) {
+            Log.d(TAG, "parseParams() put name '" + name + "' with value " + value);
+        }
+    }
 
+    /** Parses the response by building the whole DOM tree first. */
+    private void parseXmlResponseWithDom(String responseBody, boolean piiLoggable) {
         try {
-            InputSource inputSource = new InputSource(new StringReader(responseBody));
+            InputSource inputSource =
+                    new InputSource(new AmpersandEscapingReader(new StringReader(responseBody)));
             DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder docBuilder = builderFactory.newDocumentBuilder();
             Document doc = docBuilder.parse(inputSource);
             doc.getDocumentElement().normalize();
 
-            if (DebugUtils.isPiiLoggable()) {
+            if (piiLoggable) {
                 Log.d(
                         TAG,
                         "parseXmlResponseForNode() Root element: "
@@ -99,20 +446,24 @@ public class XmlDoc {
 
             NodeList nodeList = doc.getElementsByTagName(NODE_CHARACTERISTIC);
             for (int i = 0; i < nodeList.getLength(); i++) {
-                NamedNodeMap map = nodeList.item(i).getAttributes();
-                if (DebugUtils.isPiiLoggable()) {
+                Node type = nodeList.item(i).getAttributes().getNamedItem(CHARACTERISTIC_TYPE);
+                if (type == null) {
+                    // Same as the pull parser, a characteristic without type is not stored.
+                    continue;
+                }
+                if (piiLoggable) {
                     Log.d(
                             TAG,
                             "parseAuthenticateResponse() node name="
                                     + nodeList.item(i).getNodeName()
                                     + " node value="
-                                    + map.item(0).getNodeValue());
+                                    + type.getNodeValue());
                 }
                 Map<String, String> paramsMap = new ArrayMap<>();
                 Element element = (Element) nodeList.item(i);
-                paramsMap.putAll(parseParams(element.getElementsByTagName(NODE_PARM)));
+                paramsMap.putAll(parseParams(element.getElementsByTagName(NODE_PARM), piiLoggable));
                 mNodesMap.put(
-                        combineKeyWithAppId(map.item(0).getNodeValue(), paramsMap.get(APP_ID)),
+                        combineKeyWithAppId(type.getNodeValue(), paramsMap.get(APP_ID)),
                         paramsMap);
             }
         } catch (ParserConfigurationException | IOException | SAXException e) {
@@ -120,7 +471,7 @@ public class XmlDoc {
         }
     }
 
-    private static Map<String, String> parseParams(NodeList nodeList) {
+    private static Map<String, String> parseParams(NodeList nodeList, boolean piiLoggable) {
         Map<String, String> nameValue = new ArrayMap<>();
         for (int i = 0; i < nodeList.getLength(); i++) {
             Node node = nodeList.item(i);
@@ -139,10 +490,50 @@ public class XmlDoc {
             }
             nameValue.put(name, value);
 
-            if (DebugUtils.isPiiLoggable()) {
+            if (piiLoggable) {
                 Log.d(TAG, "parseParams() put name '" + name + "' with value " + value);
             }
         }
         return nameValue;
     }
+
+    /**
+     * Builder of an {@link XmlDoc} from typed params, for the configurations known ahead without
+     * building and parsing an XML document.
+     */
+    public static final class Builder {
+        private final Map<String, Map<String, String>> mNodesMap = new ArrayMap<>();
+
+        /**
+         * Adds a param to the characteristic {@code node}; for {@link ResponseXmlNode#APPLICATION}
+         * the characteristic of {@code appId}. Empty values are ignored, same as parsing.
+         */
+        public Builder addParam(
+                String node, @Nullable String appId, String name, @Nullable String value) {
+            Map<String, String> paramsMap =
+                    mNodesMap.computeIfAbsent(
+                            combineKeyWithAppId(node, appId), key -> new ArrayMap<>());
+            if (APPLICATION.equals(node) && !TextUtils.isEmpty(appId)) {
+                paramsMap.put(APP_ID, appId);
+            }
+            if (!TextUtils.isEmpty(value)) {
+                paramsMap.put(name, value);
+            }
+            return this;
+        }
+
+        public XmlDoc build() {
+            return new XmlDoc(mNodesMap);
+        }
+    }
+
+    /** A characteristic being read by the pull parser. */
+    private static final class Characteristic {
+        final String mType;
+        final Map<String, String> mParams = new ArrayMap<>();
+
+        Characteristic(String type) {
+            mType = type;
+        }
+    }
 }
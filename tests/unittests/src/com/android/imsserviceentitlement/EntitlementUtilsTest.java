@@ -16,6 +16,9 @@
 
 package com.android.imsserviceentitlement;
 
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,6 +29,9 @@ import com.android.imsserviceentitlement.WfcActivationController.EntitlementResu
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
 import com.android.imsserviceentitlement.utils.Executors;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -52,7 +58,8 @@ public class EntitlementUtilsTest {
 
     @Test
     public void entitlementCheck_checkEntitlementStatusPass_onEntitlementResult() {
-        when(mMockImsEntitlementApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mMockImsEntitlementApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
 
         EntitlementUtils.entitlementCheck(mMockImsEntitlementApi, mEntitlementResultCallback);
 
@@ -61,10 +68,23 @@ public class EntitlementUtilsTest {
 
     @Test
     public void entitlementCheck_checkEntitlementStatusWithRuntimeException_onFailure() {
-        when(mMockImsEntitlementApi.checkEntitlementStatus()).thenThrow(new RuntimeException());
+        when(mMockImsEntitlementApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFailedFuture(new RuntimeException()));
 
         EntitlementUtils.entitlementCheck(mMockImsEntitlementApi, mEntitlementResultCallback);
 
         verify(mEntitlementResultCallback, never()).onEntitlementResult(mEntitlementResult);
     }
+
+    @Test
+    public void cancelEntitlementCheck_cancelsQuery() {
+        SettableFuture<EntitlementResult> query = SettableFuture.create();
+        when(mMockImsEntitlementApi.checkEntitlementStatusAsync()).thenReturn(query);
+        EntitlementUtils.entitlementCheck(mMockImsEntitlementApi, mEntitlementResultCallback);
+
+        EntitlementUtils.cancelEntitlementCheck();
+
+        assertThat(query.isCancelled()).isTrue();
+        verify(mEntitlementResultCallback, never()).onEntitlementResult(any());
+    }
 }
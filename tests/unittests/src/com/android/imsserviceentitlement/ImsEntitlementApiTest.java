@@ -19,11 +19,13 @@ package com.android.imsserviceentitlement;
 import static com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior.NEEDS_TO_RESET;
 import static com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior.VALID_DURING_VALIDITY;
 import static com.android.libraries.entitlement.ServiceEntitlementException.ERROR_HTTP_STATUS_NOT_SUCCESS;
+import static com.android.libraries.entitlement.ServiceEntitlementException.ERROR_SERVER_NOT_CONNECTABLE;
 
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,6 +37,9 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats;
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+import com.android.imsserviceentitlement.entitlement.EntitlementQueryHistory;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
 import com.android.imsserviceentitlement.fcm.FcmTokenStore;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
@@ -43,6 +48,7 @@ import com.android.libraries.entitlement.ServiceEntitlementException;
 import com.android.libraries.entitlement.ServiceEntitlementRequest;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -58,8 +64,11 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 public class ImsEntitlementApiTest {
@@ -137,6 +146,7 @@ public class ImsEntitlementApiTest {
     public void setUp() {
         setImsProvisioningBool(true);
         FcmTokenStore.setToken(mContext, SUB_ID, FCM_TOKEN);
+        FcmTokenStore.setTokenPushPending(mContext, SUB_ID, false);
         mEntitlementConfiguration.reset();
     }
 
@@ -169,6 +179,60 @@ public class ImsEntitlementApiTest {
         assertThat(result.getSmsoveripStatus().isActive()).isTrue();
     }
 
+    @Test
+    public void checkEntitlementStatus_noFcmToken_queryWithoutWaiting() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        FcmTokenStore.setToken(mContext, SUB_ID, "");
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                ImmutableList.of(ServiceEntitlement.APP_VOWIFI),
+                authenticationRequest(null))).thenReturn(RAW_XML);
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result.getVowifiStatus().vowifiEntitled()).isTrue();
+        assertThat(FcmTokenStore.isTokenPushPending(mContext, SUB_ID)).isTrue();
+    }
+
+    @Test
+    public void checkEntitlementStatus_recordsPhaseLatencies() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any())).thenReturn(RAW_XML);
+        EntitlementLatencyStats stats = EntitlementLatencyStats.getInstance(SUB_ID);
+        long queryCount = stats.getCount(Phase.QUERY);
+        long parseCount = stats.getCount(Phase.PARSE);
+        long storeCount = stats.getCount(Phase.STORE);
+
+        mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(stats.getCount(Phase.QUERY)).isEqualTo(queryCount + 1);
+        assertThat(stats.getCount(Phase.PARSE)).isEqualTo(parseCount + 1);
+        assertThat(stats.getCount(Phase.STORE)).isEqualTo(storeCount + 1);
+    }
+
+    @Test
+    public void checkEntitlementStatus_retried_historyRecordsAttempts() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_SERVER_NOT_CONNECTABLE, "Connection reset"))
+                .thenReturn(RAW_XML);
+
+        mImsEntitlementApi.checkEntitlementStatus();
+
+        List<EntitlementQueryHistory.Record> records =
+                EntitlementQueryHistory.getInstance().getRecords(SUB_ID);
+        EntitlementQueryHistory.Record record = records.get(records.size() - 1);
+        assertThat(record.getAttempts()).isEqualTo(2);
+        assertThat(record.getOutcome()).contains("vowifiEntitled=true");
+        assertThat(record.getPhaseMillis()).containsKey(Phase.QUERY);
+    }
+
     @Test
     public void checkEntitlementStatus_verifyConfigs() throws Exception {
         setImsProvisioningBool(false);
@@ -189,6 +253,39 @@ public class ImsEntitlementApiTest {
                 VALID_DURING_VALIDITY);
     }
 
+    @Test
+    public void checkEntitlementStatus_sameResponse_configurationNotChanged() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)),
+                any())).thenReturn(RAW_XML);
+
+        EntitlementResult firstResult = mImsEntitlementApi.checkEntitlementStatus();
+        mImsEntitlementApi.markConfigurationApplied();
+        EntitlementResult secondResult = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(firstResult.isConfigurationChanged()).isTrue();
+        assertThat(secondResult.isConfigurationChanged()).isFalse();
+        assertThat(secondResult.getVowifiStatus().vowifiEntitled()).isTrue();
+    }
+
+    @Test
+    public void checkEntitlementStatus_sameResponseNotApplied_configurationStillChanged()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)),
+                any())).thenReturn(RAW_XML);
+        mEntitlementConfiguration.reset();
+
+        mImsEntitlementApi.checkEntitlementStatus();
+        EntitlementResult secondResult = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(secondResult.isConfigurationChanged()).isTrue();
+    }
+
     @Test
     public void checkEntitlementStatus_resultNull_verifyVowifiStatusAndConfigs() throws Exception {
         setImsProvisioningBool(false);
@@ -247,6 +344,306 @@ public class ImsEntitlementApiTest {
         assertThat(mEntitlementConfiguration.getToken().get()).isEqualTo("NEW_TOKEN");
     }
 
+    @Test
+    public void checkEntitlementStatus_httpResponse511_retryBudgetNotSharedBetweenCalls()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mMockEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_HTTP_STATUS_NOT_SUCCESS, 511, "Invalid connection response"));
+
+        assertThat(mImsEntitlementApi.checkEntitlementStatus()).isNull();
+        assertThat(mImsEntitlementApi.checkEntitlementStatus()).isNull();
+
+        verify(mMockEntitlementConfiguration, times(2)).reset();
+        verify(mMockServiceEntitlement, times(4)).queryEntitlementStatus(any(), any());
+    }
+
+    @Test
+    public void checkEntitlementStatus_serverNotConnectable_retried() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_SERVER_NOT_CONNECTABLE, "Connection reset"))
+                .thenReturn(RAW_XML);
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result.getVowifiStatus().vowifiEntitled()).isTrue();
+    }
+
+    @Test
+    public void checkEntitlementStatus_httpResponse500_retriedOnce() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_HTTP_STATUS_NOT_SUCCESS, 500, "Internal server error"));
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result).isNull();
+        verify(mMockServiceEntitlement, times(2)).queryEntitlementStatus(any(), any());
+    }
+
+    @Test
+    public void checkEntitlementStatus_httpResponse503WithoutRetryAfter_retried()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_HTTP_STATUS_NOT_SUCCESS, 503, "Service unavailable"))
+                .thenReturn(RAW_XML);
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result.getVowifiStatus().vowifiEntitled()).isTrue();
+        assertThat(result.getRetryAfterSeconds()).isEqualTo(-1);
+    }
+
+    @Test
+    public void checkEntitlementStatus_httpResponse404_notRetried() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_HTTP_STATUS_NOT_SUCCESS, 404, "Not found"));
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result).isNull();
+        verify(mMockServiceEntitlement).queryEntitlementStatus(any(), any());
+    }
+
+    @Test
+    public void checkEntitlementStatus_concurrentCalls_shareInFlightQuery() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    return RAW_XML;
+                });
+        EntitlementResult[] results = new EntitlementResult[2];
+        Thread firstCaller =
+                new Thread(() -> results[0] = mImsEntitlementApi.checkEntitlementStatus());
+        Thread secondCaller =
+                new Thread(() -> results[1] = mImsEntitlementApi.checkEntitlementStatus());
+
+        firstCaller.start();
+        queryStarted.await();
+        secondCaller.start();
+        while (secondCaller.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        queryReleased.countDown();
+        firstCaller.join();
+        secondCaller.join();
+
+        verify(mMockServiceEntitlement).queryEntitlementStatus(any(), any());
+        assertThat(results[0]).isNotNull();
+        assertThat(results[1]).isSameInstanceAs(results[0]);
+    }
+
+    @Test
+    public void checkEntitlementStatus_inFlightQueryThrowsError_notLeftInFlight()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    throw new AssertionError("Unexpected call");
+                })
+                .thenReturn(RAW_XML);
+        Throwable[] errors = new Throwable[2];
+        Thread firstCaller = new Thread(() -> {
+            try {
+                mImsEntitlementApi.checkEntitlementStatus();
+            } catch (Throwable e) {
+                errors[0] = e;
+            }
+        });
+        Thread secondCaller = new Thread(() -> {
+            try {
+                mImsEntitlementApi.checkEntitlementStatus();
+            } catch (Throwable e) {
+                errors[1] = e;
+            }
+        });
+
+        firstCaller.start();
+        queryStarted.await();
+        secondCaller.start();
+        while (secondCaller.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        queryReleased.countDown();
+        firstCaller.join();
+        secondCaller.join();
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(errors[0]).isInstanceOf(AssertionError.class);
+        assertThat(errors[1]).isInstanceOf(AssertionError.class);
+        assertThat(result).isNotNull();
+        verify(mMockServiceEntitlement, times(2)).queryEntitlementStatus(any(), any());
+    }
+
+    @Test
+    public void checkEntitlementStatus_leaderInterrupted_joinerQueriesAgain() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new ServiceEntitlementException(
+                            ERROR_SERVER_NOT_CONNECTABLE, "Connection interrupted");
+                })
+                .thenReturn(RAW_XML);
+        EntitlementResult[] results = new EntitlementResult[2];
+        Thread firstCaller =
+                new Thread(() -> results[0] = mImsEntitlementApi.checkEntitlementStatus());
+        Thread secondCaller =
+                new Thread(() -> results[1] = mImsEntitlementApi.checkEntitlementStatus());
+
+        firstCaller.start();
+        queryStarted.await();
+        secondCaller.start();
+        while (secondCaller.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        firstCaller.interrupt();
+        firstCaller.join();
+        secondCaller.join();
+
+        verify(mMockServiceEntitlement, times(2)).queryEntitlementStatus(any(), any());
+        assertThat(results[0]).isNull();
+        assertThat(results[1]).isNotNull();
+        assertThat(results[1].getVowifiStatus().vowifiEntitled()).isTrue();
+    }
+
+    @Test
+    public void checkEntitlementStatus_leaderInterruptedAfterResult_joinerSharesResult()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    // Cancelled just as the response arrived.
+                    Thread.currentThread().interrupt();
+                    return RAW_XML;
+                });
+        EntitlementResult[] results = new EntitlementResult[2];
+        Thread firstCaller =
+                new Thread(() -> results[0] = mImsEntitlementApi.checkEntitlementStatus());
+        Thread secondCaller =
+                new Thread(() -> results[1] = mImsEntitlementApi.checkEntitlementStatus());
+
+        firstCaller.start();
+        queryStarted.await();
+        secondCaller.start();
+        while (secondCaller.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        queryReleased.countDown();
+        firstCaller.join();
+        secondCaller.join();
+
+        verify(mMockServiceEntitlement).queryEntitlementStatus(any(), any());
+        assertThat(results[0]).isNotNull();
+        assertThat(results[1]).isSameInstanceAs(results[0]);
+    }
+
+    @Test
+    public void checkEntitlementStatus_sequentialCalls_queryEachTime() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any())).thenReturn(RAW_XML);
+
+        mImsEntitlementApi.checkEntitlementStatus();
+        mImsEntitlementApi.checkEntitlementStatus();
+
+        verify(mMockServiceEntitlement, times(2)).queryEntitlementStatus(any(), any());
+    }
+
+    @Test
+    public void checkEntitlementStatusAsync_returnsResult() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any())).thenReturn(RAW_XML);
+
+        EntitlementResult result =
+                mImsEntitlementApi.checkEntitlementStatusAsync().get(5, TimeUnit.SECONDS);
+
+        assertThat(result.getVowifiStatus().vowifiEntitled()).isTrue();
+    }
+
+    @Test
+    public void checkEntitlementStatusAsync_cancelled_interruptsQueryAndNoRetry()
+            throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryInterrupted = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        queryInterrupted.countDown();
+                    }
+                    throw new ServiceEntitlementException(
+                            ERROR_SERVER_NOT_CONNECTABLE, "Connection interrupted");
+                });
+        ListenableFuture<EntitlementResult> future =
+                mImsEntitlementApi.checkEntitlementStatusAsync();
+        queryStarted.await();
+
+        future.cancel(true);
+
+        assertThat(queryInterrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(future.isCancelled()).isTrue();
+        verify(mMockServiceEntitlement).queryEntitlementStatus(any(), any());
+    }
+
     @Test
     public void checkEntitlementStatus_httpResponse503WithDateTime_returnsRetryAfter()
             throws Exception {
@@ -315,7 +712,8 @@ public class ImsEntitlementApiTest {
                 SUB_ID,
                 TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID),
                 mMockServiceEntitlement,
-                entitlementConfiguration);
+                entitlementConfiguration,
+                /* recoverableRetryDelayMillis= */ 0);
     }
 
     private void setImsProvisioningBool(boolean provisioning) {
@@ -327,6 +725,7 @@ public class ImsEntitlementApiTest {
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
     }
 
     private String getDateTimeAfter(long seconds, Clock fixedClock) {
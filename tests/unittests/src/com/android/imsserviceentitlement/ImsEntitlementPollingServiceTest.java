@@ -18,8 +18,11 @@ package com.android.imsserviceentitlement;
 
 import static com.google.common.truth.Truth.assertThat;
 
-import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -45,6 +48,14 @@ import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.EntitlementStatus
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.ProvStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.TcStatus;
 import com.android.imsserviceentitlement.utils.ImsUtils;
+import com.android.imsserviceentitlement.utils.ProvisioningResult;
+import com.android.imsserviceentitlement.utils.ProvisioningResult.Outcome;
+import com.android.imsserviceentitlement.utils.ProvisioningState;
+import com.android.imsserviceentitlement.utils.SubscriptionRegistry;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -55,7 +66,13 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(AndroidJUnit4.class)
 public class ImsEntitlementPollingServiceTest {
@@ -65,8 +82,10 @@ public class ImsEntitlementPollingServiceTest {
 
     @Mock private ImsUtils mImsUtils;
     @Mock private JobParameters mJobParameters;
+    @Mock private JobParameters mJobParameters2;
     @Mock private SubscriptionManager mSubscriptionManager;
     @Mock private SubscriptionInfo mSubscriptionInfo;
+    @Mock private SubscriptionInfo mSubscriptionInfo2;
     @Mock private ImsEntitlementApi mImsEntitlementApi;
     @Mock private CarrierConfigManager mCarrierConfigManager;
 
@@ -75,6 +94,8 @@ public class ImsEntitlementPollingServiceTest {
 
     private static final int SUB_ID = 1;
     private static final int SLOT_ID = 0;
+    private static final int SUB_ID_2 = 2;
+    private static final int SLOT_ID_2 = 1;
 
     @Before
     public void setUp() throws Exception {
@@ -137,9 +158,8 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils).setVolteProvisioned(false);
-        verify(mImsUtils).setVowifiProvisioned(false);
-        verify(mImsUtils).setSmsoipProvisioned(false);
+        verify(mImsUtils).applyProvisioning(
+                eq(ProvisioningState.create(false, false, false)), anyInt());
     }
 
     @Test
@@ -155,9 +175,59 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils).setVolteProvisioned(true);
-        verify(mImsUtils).setVowifiProvisioned(true);
-        verify(mImsUtils).setSmsoipProvisioned(true);
+        verify(mImsUtils).applyProvisioning(
+                eq(ProvisioningState.create(true, true, true)), anyInt());
+    }
+
+    @Test
+    public void doEntitlementCheck_configurationNotChanged_skipProvisioning() throws Exception {
+        setImsProvisioningBool(true);
+        EntitlementResult entitlementResult =
+                EntitlementResult.builder()
+                        .setVowifiStatus(sEnableVoWiFi)
+                        .setVolteStatus(sEnableVoLte)
+                        .setSmsoveripStatus(sEnableSmsoverip)
+                        .setConfigurationChanged(false)
+                        .build();
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(entitlementResult);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        verify(mImsUtils, never()).applyProvisioning(any(), anyInt());
+    }
+
+    @Test
+    public void doEntitlementCheck_provisioningApplied_markConfigurationApplied()
+            throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sEnableVoWiFi, sEnableVoLte, sEnableSmsoverip));
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        verify(mImsEntitlementApi).markConfigurationApplied();
+    }
+
+    @Test
+    public void doEntitlementCheck_provisioningFailed_configurationNotMarkedApplied()
+            throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sEnableVoWiFi, sEnableVoLte, sEnableSmsoverip));
+        when(mImsUtils.applyProvisioning(any(), anyInt())).thenReturn(
+                ProvisioningResult.create(
+                        Outcome.FAILED,
+                        Outcome.APPLIED,
+                        Outcome.UNCHANGED,
+                        /* attempts= */ 2,
+                        /* latencyMillis= */ 0));
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        verify(mImsEntitlementApi, never()).markConfigurationApplied();
     }
 
     @Test
@@ -170,9 +240,7 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils, never()).setVolteProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setVowifiProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setSmsoipProvisioned(anyBoolean());
+        verify(mImsUtils, never()).applyProvisioning(any(), anyInt());
         assertThat(
                 mScheduler.getPendingJob(
                         jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID)))
@@ -188,15 +256,62 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils, never()).setVolteProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setVowifiProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setSmsoipProvisioned(anyBoolean());
+        verify(mImsUtils, never()).applyProvisioning(any(), anyInt());
         assertThat(
                 mScheduler.getPendingJob(
                         jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID)))
                 .isNotNull();
     }
 
+    @Test
+    public void onStopJob_interruptsCheckAndSkipsProvisioning() throws Exception {
+        setImsProvisioningBool(true);
+        CountDownLatch checkStarted = new CountDownLatch(1);
+        AtomicBoolean checkInterrupted = new AtomicBoolean();
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenAnswer(invocation -> {
+            checkStarted.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                checkInterrupted.set(true);
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        mService.onStartJob(mJobParameters);
+        assertThat(checkStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        mService.onStopJob(mJobParameters);
+        // The next job of the same subscription runs after the cancelled one is done.
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(getImsEntitlementResult(
+                sEnableVoWiFi, sEnableVoLte, sEnableSmsoverip));
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(checkInterrupted.get()).isTrue();
+        verify(mImsUtils, times(1)).applyProvisioning(
+                eq(ProvisioningState.create(true, true, true)), anyInt());
+    }
+
+    @Test
+    public void onStartJob_differentSubscriptions_checkedInParallel() throws Exception {
+        setActivedSubscriptions(ImmutableList.of(mSubscriptionInfo, mSubscriptionInfo2));
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenAnswer(invocation -> {
+            bothStarted.countDown();
+            bothStarted.await(5, TimeUnit.SECONDS);
+            return getEntitlementResult(sEnableVoWiFi);
+        });
+
+        mService.onStartJob(mJobParameters);
+        ListenableFuture<Void> firstTask = mService.mOngoingTask;
+        mService.onStartJob(mJobParameters2);
+        firstTask.get(); // wait for job finish.
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(bothStarted.getCount()).isEqualTo(0);
+    }
+
     @Test
     public void enqueueJob_hasJob() {
         ImsEntitlementPollingService.enqueueJob(mContext, SUB_ID, 0);
@@ -207,16 +322,38 @@ public class ImsEntitlementPollingServiceTest {
                 .isNotNull();
     }
 
+    @Test
+    public void dump_printsStateOfActiveSubscription() {
+        ImsEntitlementPollingService.enqueueJob(mContext, SUB_ID, 0);
+        StringWriter output = new StringWriter();
+
+        mService.dump(null, new PrintWriter(output), null);
+
+        assertThat(output.toString()).contains("subId=" + SUB_ID + ":");
+        assertThat(output.toString()).contains(
+                "jobId=" + jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID));
+        assertThat(output.toString()).contains("history:");
+    }
+
     private void setActivedSubscription() {
+        setActivedSubscriptions(ImmutableList.of(mSubscriptionInfo));
+    }
+
+    private void setActivedSubscriptions(List<SubscriptionInfo> subscriptionInfos) {
+        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
         when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(SLOT_ID);
-        when(mSubscriptionManager.getActiveSubscriptionInfo(SUB_ID)).thenReturn(mSubscriptionInfo);
-        when(mContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE))
-                .thenReturn(mSubscriptionManager);
+        when(mSubscriptionInfo2.getSubscriptionId()).thenReturn(SUB_ID_2);
+        when(mSubscriptionInfo2.getSimSlotIndex()).thenReturn(SLOT_ID_2);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList()).thenReturn(subscriptionInfos);
+        when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        SubscriptionRegistry.invalidate();
     }
 
     private void setupImsUtils() throws Exception {
         SparseArray<ImsUtils> imsUtilsInstances = new SparseArray<>();
         imsUtilsInstances.put(SUB_ID, mImsUtils);
+        imsUtilsInstances.put(SUB_ID_2, mImsUtils);
+        when(mImsUtils.applyProvisioning(any(), anyInt())).thenReturn(sProvisioningApplied);
         Field field = ImsUtils.class.getDeclaredField("sInstances");
         field.setAccessible(true);
         field.set(null, imsUtilsInstances);
@@ -227,11 +364,17 @@ public class ImsEntitlementPollingServiceTest {
     }
 
     private void setJobParameters() {
+        setJobParameters(mJobParameters, SUB_ID, SLOT_ID);
+        setJobParameters(mJobParameters2, SUB_ID_2, SLOT_ID_2);
+    }
+
+    private static void setJobParameters(JobParameters jobParameters, int subId, int slotId) {
         PersistableBundle bundle = new PersistableBundle();
-        bundle.putInt(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, SUB_ID);
-        bundle.putInt(JobManager.EXTRA_SLOT_ID, SLOT_ID);
-        when(mJobParameters.getExtras()).thenReturn(bundle);
-        when(mJobParameters.getJobId()).thenReturn(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID);
+        bundle.putInt(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, subId);
+        bundle.putInt(JobManager.EXTRA_SLOT_ID, slotId);
+        when(jobParameters.getExtras()).thenReturn(bundle);
+        when(jobParameters.getJobId())
+                .thenReturn(1000 * subId + JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID);
     }
 
     private void setImsProvisioningBool(boolean provisioning) {
@@ -243,6 +386,7 @@ public class ImsEntitlementPollingServiceTest {
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
     }
 
     private static EntitlementResult getEntitlementResult(Ts43VowifiStatus vowifiStatus) {
@@ -266,6 +410,14 @@ public class ImsEntitlementPollingServiceTest {
         return 1000 * subId + jobId;
     }
 
+    private static final ProvisioningResult sProvisioningApplied =
+            ProvisioningResult.create(
+                    Outcome.APPLIED,
+                    Outcome.APPLIED,
+                    Outcome.APPLIED,
+                    /* attempts= */ 1,
+                    /* latencyMillis= */ 0);
+
     private static final Ts43VowifiStatus sDisableVoWiFi =
             Ts43VowifiStatus.builder()
                     .setEntitlementStatus(EntitlementStatus.DISABLED)
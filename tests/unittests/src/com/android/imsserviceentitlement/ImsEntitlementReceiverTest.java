@@ -39,6 +39,7 @@ import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.Executors;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
+import com.android.imsserviceentitlement.utils.XmlDoc;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -185,6 +186,20 @@ public class ImsEntitlementReceiverTest {
         verify(mMockJobManager, never()).queryEntitlementStatusOnceNetworkReady();
     }
 
+    @Test
+    public void onReceive_carrierConfigChanged_newConfigUsed() {
+        assertThat(TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID)).isTrue();
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putBoolean(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL, false);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+
+        mReceiver.onReceive(mContext, getCarrierConfigChangedIntent(SUB_ID, /* slotId= */ 0));
+
+        assertThat(TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID)).isFalse();
+        verify(mMockJobManager, never()).queryEntitlementStatusOnceNetworkReady();
+    }
+
     @Test
     public void onReceive_deviceBootUp_jobScheduled() {
         new EntitlementConfiguration(mContext, LAST_SUB_ID).update(RAW_XML_VERSION_0_VALIDITY_0);
@@ -195,6 +210,20 @@ public class ImsEntitlementReceiverTest {
         verify(mMockJobManager).queryEntitlementStatusOnceNetworkReady();
     }
 
+    @Test
+    public void onReceive_deviceBootUp_provisioningAppliedAgain() {
+        EntitlementConfiguration configuration =
+                new EntitlementConfiguration(mContext, LAST_SUB_ID);
+        configuration.update(RAW_XML_VERSION_0_VALIDITY_0);
+        configuration.markApplied(new XmlDoc(RAW_XML_VERSION_0_VALIDITY_0));
+        mIsBootUp = true;
+
+        mReceiver.onReceive(mContext, getCarrierConfigChangedIntent(LAST_SUB_ID, /* slotId= */ 0));
+
+        assertThat(configuration.isApplyPending()).isTrue();
+        verify(mMockJobManager).queryEntitlementStatusOnceNetworkReady();
+    }
+
     @Test
     public void onReceive_bootCompleteInvalidVers_noJobScheduled() {
         new EntitlementConfiguration(mContext, LAST_SUB_ID).update(RAW_XML_INVALID_VERS);
@@ -220,6 +249,7 @@ public class ImsEntitlementReceiverTest {
                 .thenReturn(mCarrierConfigManager);
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mCarrierConfigManager.getConfigForSubId(LAST_SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfig(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
     }
 
     private void setLastSubId(int subId, int slotId) {
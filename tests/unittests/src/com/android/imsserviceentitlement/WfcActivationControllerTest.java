@@ -41,6 +41,8 @@ import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.ProvStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.TcStatus;
 import com.android.imsserviceentitlement.utils.Executors;
 
+import com.google.common.util.concurrent.Futures;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -130,7 +132,8 @@ public class WfcActivationControllerTest {
     @Test
     public void finishFlow_isFinishing_showGeneralWaitingUi() {
         InOrder mOrderVerifier = inOrder(mActivationUi);
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(null);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(null));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.finishFlow();
@@ -167,7 +170,8 @@ public class WfcActivationControllerTest {
                                         .setProvStatus(ProvStatus.PROVISIONED)
                                         .build())
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.evaluateEntitlementStatus();
@@ -188,7 +192,8 @@ public class WfcActivationControllerTest {
                         .setEmergencyAddressWebUrl(EMERGENCY_ADDRESS_WEB_URL)
                         .setEmergencyAddressWebData(EMERGENCY_ADDRESS_WEB_DATA)
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.evaluateEntitlementStatus();
@@ -205,7 +210,8 @@ public class WfcActivationControllerTest {
                                         .setEntitlementStatus(EntitlementStatus.INCOMPATIBLE)
                                         .build())
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.evaluateEntitlementStatus();
@@ -224,7 +230,8 @@ public class WfcActivationControllerTest {
                                         .setAddrStatus(AddrStatus.IN_PROGRESS)
                                         .build())
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.evaluateEntitlementStatus();
@@ -244,7 +251,8 @@ public class WfcActivationControllerTest {
                                         .setProvStatus(ProvStatus.PROVISIONED)
                                         .build())
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.reevaluateEntitlementStatus();
@@ -263,7 +271,8 @@ public class WfcActivationControllerTest {
                                         .setAddrStatus(AddrStatus.IN_PROGRESS)
                                         .build())
                         .build();
-        when(mActivationApi.checkEntitlementStatus()).thenReturn(mEntitlementResult);
+        when(mActivationApi.checkEntitlementStatusAsync())
+                .thenReturn(Futures.immediateFuture(mEntitlementResult));
         buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
 
         mWfcActivationController.reevaluateEntitlementStatus();
@@ -24,11 +24,14 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.utils.XmlDoc;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.TimeUnit;
+
 @RunWith(AndroidJUnit4.class)
 public class EntitlementConfigurationTest {
     private static final String RAW_XML =
@@ -68,6 +71,17 @@ public class EntitlementConfigurationTest {
                     + "        <parm name=\"EntitlementStatus\" value=\"0\"/>\n"
                     + "    </characteristic>\n"
                     + "</wap-provisioningdoc>\n";
+    private static final String RAW_XML_NO_TOKEN =
+            "<wap-provisioningdoc version=\"1.1\">\n"
+                    + "    <characteristic type=\"VERS\">\n"
+                    + "        <parm name=\"version\" value=\"1\"/>\n"
+                    + "        <parm name=\"validity\" value=\"1728000\"/>\n"
+                    + "    </characteristic>\n"
+                    + "    <characteristic type=\"APPLICATION\">\n"
+                    + "        <parm name=\"AppID\" value=\"ap2004\"/>\n"
+                    + "        <parm name=\"EntitlementStatus\" value=\"1\"/>\n"
+                    + "    </characteristic>\n"
+                    + "</wap-provisioningdoc>\n";
     private static final int SUB_ID = 1;
 
     private Context mContext;
@@ -93,6 +107,37 @@ public class EntitlementConfigurationTest {
                 ClientBehavior.VALID_DURING_VALIDITY);
     }
 
+    @Test
+    public void updateConfigurationsWithParsedDoc_verifyConfigs() {
+        mConfiguration.update(RAW_XML, new XmlDoc(RAW_XML));
+
+        assertThat(mConfiguration.getVolteStatus()).isEqualTo(0);
+        assertThat(mConfiguration.getVoWifiStatus()).isEqualTo(1);
+        assertThat(mConfiguration.getToken().get()).isEqualTo("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX");
+        assertThat(new EntitlementConfiguration(mContext, SUB_ID).getVoWifiStatus()).isEqualTo(1);
+    }
+
+    @Test
+    public void updateConfigurations_visibleToOtherInstancesOfSameSubId() {
+        EntitlementConfiguration otherConfiguration =
+                new EntitlementConfiguration(mContext, SUB_ID);
+
+        mConfiguration.update(RAW_XML);
+
+        assertThat(otherConfiguration.getVoWifiStatus()).isEqualTo(1);
+
+        mConfiguration.reset();
+
+        assertThat(otherConfiguration.getVoWifiStatus()).isEqualTo(2);
+    }
+
+    @Test
+    public void updateConfigurations_sameParams_returnsFalse() {
+        assertThat(mConfiguration.update(RAW_XML)).isTrue();
+        assertThat(mConfiguration.update(RAW_XML.replace("\n", ""))).isFalse();
+        assertThat(mConfiguration.update(RAW_XML_NO_TOKEN_VALIDITY)).isTrue();
+    }
+
     @Test
     public void updateConfigurations_reset_verifyDefaultValues() {
         mConfiguration.update(RAW_XML);
@@ -106,11 +151,55 @@ public class EntitlementConfigurationTest {
         assertThat(mConfiguration.entitlementValidation()).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
     }
 
+    @Test
+    public void resetConfigsExceptVers_keepsVersAndResetsOthers() {
+        mConfiguration.update(RAW_XML);
+        mConfiguration.resetConfigsExceptVers();
+
+        assertThat(mConfiguration.getVersion().get()).isEqualTo("1");
+        assertThat(mConfiguration.getVersValidity()).isEqualTo(1728000);
+        assertThat(mConfiguration.getVolteStatus()).isEqualTo(2);
+        assertThat(mConfiguration.getVoWifiStatus()).isEqualTo(2);
+        assertThat(mConfiguration.getSmsOverIpStatus()).isEqualTo(2);
+        assertThat(mConfiguration.getToken().isPresent()).isFalse();
+        assertThat(mConfiguration.getTokenValidity()).isEqualTo(0);
+        assertThat(new EntitlementConfiguration(mContext, SUB_ID).getVersion().get())
+                .isEqualTo("1");
+    }
+
     @Test
     public void updateConfigurations_noTokenValidity_tokenValid() {
         mConfiguration.update(RAW_XML_NO_TOKEN_VALIDITY);
 
         assertThat(mConfiguration.getToken().get()).isEqualTo("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX");
         assertThat(mConfiguration.getTokenValidity()).isEqualTo(0);
+        assertThat(mConfiguration.getTokenExpiryTimeMillis()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void updateConfigurations_tokenExpiryTimeFromQueryTimeAndValidity() {
+        long beforeMillis = System.currentTimeMillis();
+        mConfiguration.update(RAW_XML);
+        long afterMillis = System.currentTimeMillis();
+
+        assertThat(mConfiguration.getTokenExpiryTimeMillis())
+                .isAtLeast(beforeMillis + TimeUnit.SECONDS.toMillis(3600));
+        assertThat(mConfiguration.getTokenExpiryTimeMillis())
+                .isAtMost(afterMillis + TimeUnit.SECONDS.toMillis(3600));
+    }
+
+    @Test
+    public void updateConfigurations_noToken_noTokenExpiryTime() {
+        mConfiguration.update(RAW_XML_NO_TOKEN);
+
+        assertThat(mConfiguration.getToken().isPresent()).isFalse();
+        assertThat(mConfiguration.getTokenExpiryTimeMillis())
+                .isEqualTo(EntitlementConfiguration.NO_TOKEN_EXPIRY_TIME_MILLIS);
+    }
+
+    @Test
+    public void getTokenExpiryTimeMillis_noQueryTime_expired() {
+        assertThat(EntitlementConfiguration.getTokenExpiryTimeMillis(new XmlDoc(RAW_XML), 0))
+                .isEqualTo(0);
     }
 }
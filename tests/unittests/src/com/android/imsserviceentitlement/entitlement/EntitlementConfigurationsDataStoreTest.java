@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.util.AtomicFile;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementConfigurationsDataStoreTest {
+    private static final String RAW_XML =
+            "<wap-provisioningdoc version=\"1.1\">\n"
+                    + "    <characteristic type=\"VERS\">\n"
+                    + "        <parm name=\"version\" value=\"1\"/>\n"
+                    + "        <parm name=\"validity\" value=\"1728000\"/>\n"
+                    + "    </characteristic>\n"
+                    + "    <characteristic type=\"APPLICATION\">\n"
+                    + "        <parm name=\"AppID\" value=\"ap2004\"/>\n"
+                    + "        <parm name=\"EntitlementStatus\" value=\"1\"/>\n"
+                    + "    </characteristic>\n"
+                    + "</wap-provisioningdoc>\n";
+    private static final String RAW_XML_2 = RAW_XML.replace("value=\"1\"", "value=\"2\"");
+    // Not used by other tests, so not affected by the instances cached in getInstance().
+    private static final int SUB_ID = 99;
+    private static final String PREFERENCE_NAME = "ENTITLEMENT_CHARACTERISTICS_" + SUB_ID;
+
+    private Context mContext;
+    private File mSnapshotFile;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mSnapshotFile = new File(mContext.getFilesDir(), PREFERENCE_NAME + ".snapshot");
+        mSnapshotFile.delete();
+        mContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .clear()
+                .commit();
+    }
+
+    @Test
+    public void set_newInstanceLoadsSnapshot() {
+        new EntitlementConfigurationsDataStore(mContext, SUB_ID)
+                .set(RAW_XML, new XmlDoc(RAW_XML));
+
+        XmlDoc xmlDoc = new EntitlementConfigurationsDataStore(mContext, SUB_ID).getXmlDoc();
+
+        assertThat(mSnapshotFile.exists()).isTrue();
+        assertThat(xmlDoc.getInt("VERS", "version", null, 0)).isEqualTo(1);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2004", 2)).isEqualTo(1);
+    }
+
+    @Test
+    public void getXmlDoc_rawXmlStoredByPreviousVersion_migratedToSnapshot() {
+        mContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString("XML_DOCUMENT", RAW_XML)
+                .commit();
+
+        XmlDoc xmlDoc = new EntitlementConfigurationsDataStore(mContext, SUB_ID).getXmlDoc();
+
+        assertThat(mSnapshotFile.exists()).isTrue();
+        assertThat(xmlDoc.getLong("VERS", "validity", null, 0)).isEqualTo(1728000);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2004", 2)).isEqualTo(1);
+    }
+
+    @Test
+    public void set_snapshotWriteFails_keepsStoredDocument() {
+        new EntitlementConfigurationsDataStore(mContext, SUB_ID)
+                .set(RAW_XML, new XmlDoc(RAW_XML));
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID, failingSnapshotFile());
+
+        boolean changed = dataStore.set(RAW_XML_2, new XmlDoc(RAW_XML_2));
+
+        assertThat(changed).isTrue();
+        assertThat(dataStore.getXmlDoc()).isEqualTo(new XmlDoc(RAW_XML));
+        assertThat(new EntitlementConfigurationsDataStore(mContext, SUB_ID).getXmlDoc())
+                .isEqualTo(new XmlDoc(RAW_XML));
+    }
+
+    @Test
+    public void getXmlDoc_migrationSnapshotWriteFails_keepsRawXml() {
+        mContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString("XML_DOCUMENT", RAW_XML)
+                .commit();
+
+        XmlDoc xmlDoc =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID, failingSnapshotFile())
+                        .getXmlDoc();
+
+        assertThat(xmlDoc).isEqualTo(new XmlDoc(RAW_XML));
+        assertThat(mContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .getString("XML_DOCUMENT", null)).isEqualTo(RAW_XML);
+    }
+
+    @Test
+    public void markApplied_pendingUntilChanged() {
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+        dataStore.set(RAW_XML, new XmlDoc(RAW_XML));
+        assertThat(dataStore.isApplyPending()).isTrue();
+
+        dataStore.markApplied(new XmlDoc(RAW_XML));
+        dataStore.set(RAW_XML, new XmlDoc(RAW_XML));
+        assertThat(dataStore.isApplyPending()).isFalse();
+
+        dataStore.set(RAW_XML_2, new XmlDoc(RAW_XML_2));
+        dataStore.markApplied(new XmlDoc(RAW_XML));
+        assertThat(dataStore.isApplyPending()).isTrue();
+    }
+
+    @Test
+    public void getXmlDoc_nothingStored_emptyDoc() {
+        XmlDoc xmlDoc = new EntitlementConfigurationsDataStore(mContext, SUB_ID).getXmlDoc();
+
+        assertThat(mSnapshotFile.exists()).isFalse();
+        assertThat(xmlDoc.get("VERS", "version", null).isPresent()).isFalse();
+    }
+
+    @Test
+    public void getInstance_concurrentCalls_sameInstance() throws Exception {
+        int subId = SUB_ID + 1;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<EntitlementConfigurationsDataStore>> calls = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            calls.add(() -> EntitlementConfigurationsDataStore.getInstance(mContext, subId));
+        }
+
+        List<Future<EntitlementConfigurationsDataStore>> results = executor.invokeAll(calls);
+        executor.shutdown();
+
+        EntitlementConfigurationsDataStore expected =
+                EntitlementConfigurationsDataStore.getInstance(mContext, subId);
+        for (Future<EntitlementConfigurationsDataStore> result : results) {
+            assertThat(result.get()).isSameInstanceAs(expected);
+        }
+    }
+
+    /** Returns the snapshot file of {@link #SUB_ID} which fails to be written, e.g. disk full. */
+    private AtomicFile failingSnapshotFile() {
+        return new AtomicFile(mSnapshotFile) {
+            @Override
+            public FileOutputStream startWrite() throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementLatencyStatsTest {
+    private final EntitlementLatencyStats mStats = new EntitlementLatencyStats();
+
+    @Test
+    public void record_countedInBucketOfUpperBound() {
+        mStats.record(Phase.QUERY, 0);
+        mStats.record(Phase.QUERY, 50);
+        mStats.record(Phase.QUERY, 51);
+        mStats.record(Phase.QUERY, 30001);
+
+        long[] buckets = mStats.getBucketCounts(Phase.QUERY);
+        assertThat(buckets)
+                .hasLength(EntitlementLatencyStats.BUCKET_UPPER_BOUNDS_MILLIS.length + 1);
+        assertThat(buckets[0]).isEqualTo(2);
+        assertThat(buckets[1]).isEqualTo(1);
+        assertThat(buckets[buckets.length - 1]).isEqualTo(1);
+        assertThat(mStats.getCount(Phase.QUERY)).isEqualTo(4);
+        assertThat(mStats.getMaxMillis(Phase.QUERY)).isEqualTo(30001);
+        assertThat(mStats.getMeanMillis(Phase.QUERY)).isEqualTo((50 + 51 + 30001) / 4);
+    }
+
+    @Test
+    public void record_phasesKeptApart() {
+        mStats.record(Phase.PARSE, 10);
+
+        assertThat(mStats.getCount(Phase.PARSE)).isEqualTo(1);
+        assertThat(mStats.getCount(Phase.STORE)).isEqualTo(0);
+        assertThat(mStats.getMeanMillis(Phase.STORE)).isEqualTo(0);
+    }
+
+    @Test
+    public void getInstance_perSubId() {
+        assertThat(EntitlementLatencyStats.getInstance(1))
+                .isSameInstanceAs(EntitlementLatencyStats.getInstance(1));
+        assertThat(EntitlementLatencyStats.getInstance(1))
+                .isNotSameInstanceAs(EntitlementLatencyStats.getInstance(2));
+    }
+}
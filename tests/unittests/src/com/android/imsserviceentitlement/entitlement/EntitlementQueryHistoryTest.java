@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementLatencyStats.Phase;
+import com.android.imsserviceentitlement.entitlement.EntitlementQueryHistory.Record;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementQueryHistoryTest {
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+
+    private final EntitlementQueryHistory mHistory = new EntitlementQueryHistory();
+
+    @Test
+    public void getRecords_onlyRecordsOfSubId() {
+        Record record = record(SUB_ID, 0);
+        mHistory.add(record);
+        mHistory.add(record(OTHER_SUB_ID, 1));
+
+        assertThat(mHistory.getRecords(SUB_ID)).containsExactly(record);
+    }
+
+    @Test
+    public void add_historyFull_dropsOldest() {
+        for (int i = 0; i <= EntitlementQueryHistory.MAX_RECORDS; i++) {
+            mHistory.add(record(SUB_ID, i));
+        }
+
+        ImmutableList<Record> records = mHistory.getRecords(SUB_ID);
+        assertThat(records).hasSize(EntitlementQueryHistory.MAX_RECORDS);
+        assertThat(records.get(0).getStartTimeMillis()).isEqualTo(1);
+        assertThat(records.get(records.size() - 1).getStartTimeMillis())
+                .isEqualTo(EntitlementQueryHistory.MAX_RECORDS);
+    }
+
+    @Test
+    public void recordToString_containsOutcomeAndPhases() {
+        String text = record(SUB_ID, 0).toString();
+
+        assertThat(text).contains("outcome=no result");
+        assertThat(text).contains("QUERY=120");
+    }
+
+    private static Record record(int subId, long startTimeMillis) {
+        return Record.create(
+                startTimeMillis, subId, 1, "no result", ImmutableMap.of(Phase.QUERY, 120L));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class VersCharacteristicTest {
+    @Test
+    public void create_positiveVersion() {
+        assertThat(behaviorOf(1, 3600)).isEqualTo(ClientBehavior.VALID_DURING_VALIDITY);
+        assertThat(behaviorOf(1, 0)).isEqualTo(ClientBehavior.VALID_WITHOUT_DURATION);
+        assertThat(behaviorOf(1, -1)).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+    }
+
+    @Test
+    public void create_resetVersions() {
+        assertThat(behaviorOf(0, 0)).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+        assertThat(behaviorOf(-1, -1)).isEqualTo(ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS);
+        assertThat(behaviorOf(-2, -2))
+                .isEqualTo(ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON);
+    }
+
+    @Test
+    public void create_resetVersionWithMismatchedValidity_classifiedByVersion() {
+        assertThat(behaviorOf(0, 5)).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+        assertThat(behaviorOf(-1, 5)).isEqualTo(ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS);
+        assertThat(behaviorOf(-2, 0))
+                .isEqualTo(ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON);
+    }
+
+    @Test
+    public void create_unknownNegativeVersion_needsToReset() {
+        assertThat(behaviorOf(-3, -3)).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+    }
+
+    @Test
+    public void from_readsVersionAndValidity() {
+        VersCharacteristic vers = VersCharacteristic.from(new XmlDoc(
+                "<wap-provisioningdoc version=\"1.1\">"
+                        + "<characteristic type=\"VERS\">"
+                        + "<parm name=\"version\" value=\"3\"/>"
+                        + "<parm name=\"validity\" value=\"172800\"/>"
+                        + "</characteristic>"
+                        + "</wap-provisioningdoc>"));
+
+        assertThat(vers.getVersion()).isEqualTo(3);
+        assertThat(vers.getValidity()).isEqualTo(172800);
+        assertThat(vers.getClientBehavior()).isEqualTo(ClientBehavior.VALID_DURING_VALIDITY);
+    }
+
+    @Test
+    public void from_malformedVersion_needsToReset() {
+        VersCharacteristic vers = VersCharacteristic.from(new XmlDoc(
+                "<wap-provisioningdoc version=\"1.1\">"
+                        + "<characteristic type=\"VERS\">"
+                        + "<parm name=\"version\" value=\"one\"/>"
+                        + "<parm name=\"validity\" value=\"172800\"/>"
+                        + "</characteristic>"
+                        + "</wap-provisioningdoc>"));
+
+        assertThat(vers.getVersion()).isEqualTo(0);
+        assertThat(vers.getClientBehavior()).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+    }
+
+    @Test
+    public void from_emptyDocument_needsToReset() {
+        VersCharacteristic vers = VersCharacteristic.from(new XmlDoc(null));
+
+        assertThat(vers.getVersion()).isEqualTo(0);
+        assertThat(vers.getValidity()).isEqualTo(0);
+        assertThat(vers.getClientBehavior()).isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+    }
+
+    private static ClientBehavior behaviorOf(int version, long validity) {
+        return VersCharacteristic.create(version, validity).getClientBehavior();
+    }
+}
@@ -32,6 +32,8 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.SubscriptionRegistry;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.google.firebase.messaging.FirebaseMessaging;
@@ -77,6 +79,8 @@ public class FcmRegistrationServiceTest {
         mService.onBind(null);
         mScheduler = mContext.getSystemService(JobScheduler.class);
         FcmTokenStore.setToken(mContext, SUB_ID, "");
+        FcmTokenStore.setTokenPushPending(mContext, SUB_ID, false);
+        mScheduler.cancelAll();
     }
 
     @Test
@@ -98,6 +102,21 @@ public class FcmRegistrationServiceTest {
         assertThat(FcmTokenStore.getToken(mContext, SUB_ID)).isEqualTo(TOKEN);
     }
 
+    @Test
+    public void onStartJob_tokenPushPending_queryEntitlementStatus() throws Exception {
+        when(mInstanceID.getToken(SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE))
+                .thenReturn(TOKEN);
+        mService.setFakeInstanceID(mInstanceID);
+        FcmTokenStore.setTokenPushPending(mContext, SUB_ID, true);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(FcmTokenStore.isTokenPushPending(mContext, SUB_ID)).isFalse();
+        assertThat(mScheduler.getPendingJob(
+                1000 * SUB_ID + JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID)).isNotNull();
+    }
+
     @Test
     public void onStopJob_alwaysRetunedTrue() {
         assertThat(mService.onStopJob(mJobParameters)).isTrue();
@@ -105,13 +124,13 @@ public class FcmRegistrationServiceTest {
 
     private void setActiveSubscriptionInfoList() {
         when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(0);
-        when(mSubscriptionManager.getActiveSubscriptionInfo(SUB_ID)).thenReturn(mSubscriptionInfo);
         when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
         List<SubscriptionInfo> mSubscriptionInfoList = new ArrayList<>();
         mSubscriptionInfoList.add(mSubscriptionInfo);
         when(mSubscriptionManager.getActiveSubscriptionInfoList())
                 .thenReturn(mSubscriptionInfoList);
         when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        SubscriptionRegistry.invalidate();
     }
 
     private void setFcmSenderIdString(String senderId) {
@@ -123,5 +142,6 @@ public class FcmRegistrationServiceTest {
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
     }
 }
@@ -30,6 +30,8 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.SubscriptionRegistry;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
 import com.android.libraries.entitlement.ServiceEntitlement;
 
 import org.junit.Before;
@@ -117,6 +119,7 @@ public class FcmServiceTest {
         when(mSubscriptionManager.getActiveSubscriptionInfoList())
                 .thenReturn(mSubscriptionInfoList);
         when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        SubscriptionRegistry.invalidate();
     }
 
     private void setFcmSenderIdString(String senderId) {
@@ -128,5 +131,6 @@ public class FcmServiceTest {
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
     }
 }
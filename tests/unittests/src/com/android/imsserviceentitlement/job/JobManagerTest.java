@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.job;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class JobManagerTest {
+    private static final int SUB_ID = 1;
+    private static final ComponentName COMPONENT_NAME =
+            ComponentName.unflattenFromString(
+                    "com.android.imsserviceentitlement/.ImsEntitlementPollingService");
+    private static final int QUERY_JOB_ID =
+            1000 * SUB_ID + JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID;
+
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private CarrierConfigManager mCarrierConfigManager;
+
+    private final Context mContext = spy(ApplicationProvider.getApplicationContext());
+    private final PersistableBundle mCarrierConfig = new PersistableBundle();
+
+    private JobManager mJobManager;
+    private JobScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        when(mContext.getSystemService(CarrierConfigManager.class))
+                .thenReturn(mCarrierConfigManager);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(mCarrierConfig);
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
+        mJobManager = new JobManager(mContext, COMPONENT_NAME, SUB_ID);
+        mScheduler = mContext.getSystemService(JobScheduler.class);
+        mScheduler.cancelAll();
+    }
+
+    @After
+    public void tearDown() {
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
+        mScheduler.cancelAll();
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_noDelay_spreadOverWindow() {
+        mJobManager.queryEntitlementStatusOnceNetworkReady();
+
+        assertThat(getMinLatencyMillis())
+                .isAtMost(JobManager.DEFAULT_IMMEDIATE_JITTER_WINDOW_MILLIS);
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_withDelay_jitterWithinFraction() {
+        long delayMillis = TimeUnit.HOURS.toMillis(1);
+
+        mJobManager.queryEntitlementStatusOnceNetworkReady(0, Duration.ofMillis(delayMillis));
+
+        assertThat(getMinLatencyMillis()).isAtLeast(delayMillis);
+        assertThat(getMinLatencyMillis())
+                .isAtMost(delayMillis
+                        + delayMillis / 100 * JobManager.DEFAULT_DELAY_JITTER_PERCENT);
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_longDelay_jitterCapped() {
+        long delayMillis = TimeUnit.DAYS.toMillis(30);
+
+        mJobManager.queryEntitlementStatusOnceNetworkReady(0, Duration.ofMillis(delayMillis));
+
+        assertThat(getMinLatencyMillis())
+                .isAtMost(delayMillis + JobManager.DEFAULT_MAX_DELAY_JITTER_MILLIS);
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_sameDevice_sameJitter() {
+        mJobManager.queryEntitlementStatusOnceNetworkReady();
+        long firstLatencyMillis = getMinLatencyMillis();
+
+        mJobManager.queryEntitlementStatusOnceNetworkReady();
+
+        assertThat(getMinLatencyMillis()).isEqualTo(firstLatencyMillis);
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_carrierConfigNoWindow_noJitter() {
+        mCarrierConfig.putLong(TelephonyUtils.KEY_QUERY_JITTER_WINDOW_MILLIS_LONG, 0);
+
+        mJobManager.queryEntitlementStatusOnceNetworkReady();
+
+        assertThat(getMinLatencyMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void queryEntitlementStatusOnceNetworkReady_carrierConfigJitter_withinConfig() {
+        long delayMillis = TimeUnit.HOURS.toMillis(1);
+        mCarrierConfig.putInt(TelephonyUtils.KEY_QUERY_DELAY_JITTER_PERCENT_INT, 50);
+        mCarrierConfig.putLong(TelephonyUtils.KEY_QUERY_MAX_DELAY_JITTER_MILLIS_LONG, 1000);
+
+        mJobManager.queryEntitlementStatusOnceNetworkReady(0, Duration.ofMillis(delayMillis));
+
+        assertThat(getMinLatencyMillis()).isAtLeast(delayMillis);
+        assertThat(getMinLatencyMillis()).isAtMost(delayMillis + 1000);
+    }
+
+    private long getMinLatencyMillis() {
+        return mScheduler.getPendingJob(QUERY_JOB_ID).getMinLatencyMillis();
+    }
+}
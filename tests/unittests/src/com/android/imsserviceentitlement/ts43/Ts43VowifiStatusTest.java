@@ -24,6 +24,7 @@ import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.AddrStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.EntitlementStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.ProvStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.TcStatus;
+import com.android.imsserviceentitlement.utils.XmlDoc;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -254,6 +255,28 @@ public class Ts43VowifiStatusTest {
         assertThat(status.incompatible()).isFalse();
     }
 
+    @Test
+    public void builderFromXmlDoc_malformedNumbers_useDefaultValues() {
+        XmlDoc doc =
+                new XmlDoc(
+                        "<wap-provisioningdoc version=\"1.1\">"
+                                + "<characteristic type=\"APPLICATION\">"
+                                + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                                + "<parm name=\"EntitlementStatus\" value=\"1\"/>"
+                                + "<parm name=\"TC_Status\" value=\"-\"/>"
+                                + "<parm name=\"AddrStatus\" value=\"available\"/>"
+                                + "<parm name=\"ProvStatus\" value=\"1x\"/>"
+                                + "</characteristic>"
+                                + "</wap-provisioningdoc>");
+
+        Ts43VowifiStatus status = Ts43VowifiStatus.builder(doc).build();
+
+        assertThat(status.entitlementStatus()).isEqualTo(EntitlementStatus.ENABLED);
+        assertThat(status.tcStatus()).isEqualTo(TcStatus.NOT_REQUIRED);
+        assertThat(status.addrStatus()).isEqualTo(AddrStatus.NOT_REQUIRED);
+        assertThat(status.provStatus()).isEqualTo(ProvStatus.NOT_REQUIRED);
+    }
+
     @Test
     public void toString_vowifiAvailable_statusLogged() {
         Ts43VowifiStatus status =
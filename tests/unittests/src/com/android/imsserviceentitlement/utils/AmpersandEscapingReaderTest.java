@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+@RunWith(AndroidJUnit4.class)
+public class AmpersandEscapingReaderTest {
+    @Test
+    public void read_bareAmpersand_escaped() throws Exception {
+        assertThat(escape("a=1&b=2&")).isEqualTo("a=1&amp;b=2&amp;");
+    }
+
+    @Test
+    public void read_predefinedEntities_keptAsIs() throws Exception {
+        assertThat(escape("&amp;&lt;&gt;&quot;&apos;")).isEqualTo("&amp;&lt;&gt;&quot;&apos;");
+    }
+
+    @Test
+    public void read_characterReferences_keptAsIs() throws Exception {
+        assertThat(escape("&#38;&#x26;&#x10FFFF;")).isEqualTo("&#38;&#x26;&#x10FFFF;");
+    }
+
+    @Test
+    public void read_invalidReferences_escaped() throws Exception {
+        assertThat(escape("&;&#;&#x;&#1a;&foo;&ampx;"))
+                .isEqualTo("&amp;;&amp;#;&amp;#x;&amp;#1a;&amp;foo;&amp;ampx;");
+    }
+
+    @Test
+    public void read_escapedAmpersandFollowedByText_keptAsIs() throws Exception {
+        assertThat(escape("&amp;amp;l=en_US")).isEqualTo("&amp;amp;l=en_US");
+    }
+
+    @Test
+    public void read_referenceAcrossBufferBoundary_keptAsIs() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1021; i++) {
+            input.append('x');
+        }
+        input.append("&amp;&b");
+
+        assertThat(escape(input.toString())).isEqualTo(input.toString().replace("&b", "&amp;b"));
+    }
+
+    private static String escape(String input) throws IOException {
+        StringBuilder output = new StringBuilder();
+        char[] buffer = new char[7];
+        try (Reader reader = new AmpersandEscapingReader(new StringReader(input))) {
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                output.append(buffer, 0, read);
+            }
+        }
+        return output.toString();
+    }
+}
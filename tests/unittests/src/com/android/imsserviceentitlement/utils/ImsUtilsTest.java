@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.telephony.CarrierConfigManager;
+import android.telephony.ims.ImsMmTelManager;
+import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.stub.ImsConfigImplBase;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.utils.ProvisioningResult.Outcome;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(AndroidJUnit4.class)
+public class ImsUtilsTest {
+    private static final int SUB_ID = 1;
+    private static final int KEY_VOLTE_PROVISIONING_STATUS = 10;
+    private static final int KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE = 28;
+
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private CarrierConfigManager mCarrierConfigManager;
+    @Mock private ImsMmTelManager mImsMmTelManager;
+    @Mock private ProvisioningManager mProvisioningManager;
+
+    private ImsUtils mImsUtils;
+
+    @Before
+    public void setUp() {
+        when(mProvisioningManager.getProvisioningIntValue(anyInt()))
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+        when(mProvisioningManager.setProvisioningIntValue(anyInt(), anyInt()))
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_SUCCESS);
+        mImsUtils = new ImsUtils(
+                mCarrierConfigManager, mImsMmTelManager, mProvisioningManager, SUB_ID);
+    }
+
+    @Test
+    public void applyProvisioning_sameAsImsStack_notSet() {
+        ProvisioningResult result = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, false, false), /* maxRetries= */ 1);
+
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.getVowifiOutcome()).isEqualTo(Outcome.UNCHANGED);
+        assertThat(result.getVolteOutcome()).isEqualTo(Outcome.UNCHANGED);
+        assertThat(result.getSmsoipOutcome()).isEqualTo(Outcome.UNCHANGED);
+        verify(mProvisioningManager, never()).setProvisioningIntValue(anyInt(), anyInt());
+    }
+
+    @Test
+    public void applyProvisioning_changed_setOnce() {
+        when(mProvisioningManager.getProvisioningIntValue(KEY_VOLTE_PROVISIONING_STATUS))
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_DISABLED)
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+
+        ProvisioningResult firstResult = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, true, false), /* maxRetries= */ 1);
+        ProvisioningResult secondResult = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, true, false), /* maxRetries= */ 1);
+
+        assertThat(firstResult.getVolteOutcome()).isEqualTo(Outcome.APPLIED);
+        assertThat(secondResult.getVolteOutcome()).isEqualTo(Outcome.UNCHANGED);
+        verify(mProvisioningManager, times(1)).setProvisioningIntValue(
+                KEY_VOLTE_PROVISIONING_STATUS, ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+    }
+
+    @Test
+    public void applyProvisioning_imsStackResetSinceApplied_setAgain() {
+        // The IMS stack drops the applied value, e.g. after it restarted.
+        when(mProvisioningManager.getProvisioningIntValue(KEY_VOLTE_PROVISIONING_STATUS))
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+
+        mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, true, false), /* maxRetries= */ 1);
+        ProvisioningResult result = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, true, false), /* maxRetries= */ 1);
+
+        assertThat(result.getVolteOutcome()).isEqualTo(Outcome.APPLIED);
+        verify(mProvisioningManager, times(2)).setProvisioningIntValue(
+                KEY_VOLTE_PROVISIONING_STATUS, ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+    }
+
+    @Test
+    public void applyProvisioning_setFailed_retriedAndReported() {
+        when(mProvisioningManager.setProvisioningIntValue(
+                KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_ENABLED))
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_FAILED);
+
+        ProvisioningResult result = mImsUtils.applyProvisioning(
+                ProvisioningState.create(true, true, false), /* maxRetries= */ 1);
+
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.getVowifiOutcome()).isEqualTo(Outcome.FAILED);
+        assertThat(result.getVolteOutcome()).isEqualTo(Outcome.APPLIED);
+        assertThat(result.getAttempts()).isEqualTo(2);
+        verify(mProvisioningManager, times(2)).setProvisioningIntValue(
+                KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+        verify(mProvisioningManager, times(1)).setProvisioningIntValue(
+                KEY_VOLTE_PROVISIONING_STATUS, ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+    }
+
+    @Test
+    public void applyProvisioning_setThrows_retriedUntilApplied() {
+        when(mProvisioningManager.setProvisioningIntValue(
+                KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_ENABLED))
+                .thenThrow(new IllegalStateException())
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_SUCCESS);
+
+        ProvisioningResult result = mImsUtils.applyProvisioning(
+                ProvisioningState.create(true, false, false), /* maxRetries= */ 1);
+
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.getVowifiOutcome()).isEqualTo(Outcome.APPLIED);
+        assertThat(result.getAttempts()).isEqualTo(2);
+    }
+
+    @Test
+    public void applyProvisioning_waitingForRetry_otherCallNotBlocked() throws Exception {
+        CountDownLatch setFailed = new CountDownLatch(1);
+        when(mProvisioningManager.setProvisioningIntValue(
+                KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_ENABLED))
+                .thenAnswer(invocation -> {
+                    setFailed.countDown();
+                    return ImsConfigImplBase.CONFIG_RESULT_FAILED;
+                });
+        ProvisioningResult[] firstResult = new ProvisioningResult[1];
+        Thread firstCaller = new Thread(() -> firstResult[0] = mImsUtils.applyProvisioning(
+                ProvisioningState.create(true, false, false), /* maxRetries= */ 1));
+
+        firstCaller.start();
+        setFailed.await();
+        ProvisioningResult secondResult = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, false, false), /* maxRetries= */ 1);
+
+        // Returned while the first call still waits for its retry.
+        assertThat(firstCaller.isAlive()).isTrue();
+        assertThat(secondResult.isSuccessful()).isTrue();
+        firstCaller.join();
+        // Superseded by the second call, so not retried.
+        assertThat(firstResult[0].getVowifiOutcome()).isEqualTo(Outcome.FAILED);
+        assertThat(firstResult[0].getAttempts()).isEqualTo(1);
+        verify(mProvisioningManager, times(1)).setProvisioningIntValue(
+                KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+    }
+
+    @Test
+    public void applyProvisioning_setFailedOnce_retriedAfterDelay() {
+        when(mProvisioningManager.setProvisioningIntValue(
+                KEY_VOLTE_PROVISIONING_STATUS, ProvisioningManager.PROVISIONING_VALUE_ENABLED))
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_FAILED)
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_SUCCESS);
+
+        ProvisioningResult result = mImsUtils.applyProvisioning(
+                ProvisioningState.create(false, true, false), /* maxRetries= */ 1);
+
+        assertThat(result.getVolteOutcome()).isEqualTo(Outcome.APPLIED);
+        assertThat(result.getAttempts()).isEqualTo(2);
+        assertThat(result.getLatencyMillis())
+                .isAtLeast(ImsUtils.PROVISIONING_RETRY_DELAY_MILLIS);
+        verify(mProvisioningManager, times(2)).setProvisioningIntValue(
+                KEY_VOLTE_PROVISIONING_STATUS, ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(AndroidJUnit4.class)
+public class SubscriptionRegistryTest {
+    private static final int SUB_ID = 1;
+    private static final int SLOT_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private SubscriptionManager mSubscriptionManager;
+    @Mock private SubscriptionInfo mSubscriptionInfo;
+
+    @Spy private final Context mContext = ApplicationProvider.getApplicationContext();
+
+    private OnSubscriptionsChangedListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
+        when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(SLOT_ID);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList())
+                .thenReturn(ImmutableList.of(mSubscriptionInfo));
+        when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        SubscriptionRegistry.resetForTesting();
+        // The first lookup registers the listener on the main thread.
+        SubscriptionRegistry.getActiveSubIds(mContext);
+        waitForMainThreadIdle();
+        ArgumentCaptor<OnSubscriptionsChangedListener> listener =
+                ArgumentCaptor.forClass(OnSubscriptionsChangedListener.class);
+        verify(mSubscriptionManager).addOnSubscriptionsChangedListener(any(), listener.capture());
+        mListener = listener.getValue();
+        clearInvocations(mSubscriptionManager);
+    }
+
+    @Test
+    public void lookups_activeSubscription() {
+        assertThat(SubscriptionRegistry.isActiveSubId(mContext, SUB_ID)).isTrue();
+        assertThat(SubscriptionRegistry.getSlotId(mContext, SUB_ID)).isEqualTo(SLOT_ID);
+        assertThat(SubscriptionRegistry.getActiveSubIds(mContext)).containsExactly(SUB_ID);
+    }
+
+    @Test
+    public void lookups_inactiveSubscription() {
+        assertThat(SubscriptionRegistry.isActiveSubId(mContext, OTHER_SUB_ID)).isFalse();
+        assertThat(SubscriptionRegistry.getSlotId(mContext, OTHER_SUB_ID))
+                .isEqualTo(SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+    }
+
+    @Test
+    public void lookups_noActiveSubscriptionList_noneActive() {
+        when(mSubscriptionManager.getActiveSubscriptionInfoList()).thenReturn(null);
+
+        assertThat(SubscriptionRegistry.getActiveSubIds(mContext)).isEmpty();
+    }
+
+    @Test
+    public void lookups_loadedOnce() {
+        SubscriptionRegistry.isActiveSubId(mContext, SUB_ID);
+        SubscriptionRegistry.getSlotId(mContext, SUB_ID);
+        SubscriptionRegistry.getActiveSubIds(mContext);
+
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfoList();
+    }
+
+    @Test
+    public void invalidate_loadedAgain() {
+        SubscriptionRegistry.getSlotId(mContext, SUB_ID);
+        when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(0);
+
+        SubscriptionRegistry.invalidate();
+
+        assertThat(SubscriptionRegistry.getSlotId(mContext, SUB_ID)).isEqualTo(0);
+        verify(mSubscriptionManager, times(2)).getActiveSubscriptionInfoList();
+    }
+
+    @Test
+    public void onSubscriptionsChanged_loadedAgain() {
+        SubscriptionRegistry.getSlotId(mContext, SUB_ID);
+        when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(0);
+
+        mListener.onSubscriptionsChanged();
+
+        assertThat(SubscriptionRegistry.getSlotId(mContext, SUB_ID)).isEqualTo(0);
+        verify(mSubscriptionManager, times(2)).getActiveSubscriptionInfoList();
+    }
+
+    private static void waitForMainThreadIdle() throws InterruptedException {
+        CountDownLatch idle = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(idle::countDown);
+        idle.await();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+@RunWith(AndroidJUnit4.class)
+public class TelephonyUtilsTest {
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+    private static final String SENDER_ID = "SENDER_ID";
+    private static final String SERVER_URL = "https://entitlement.example.com";
+
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private CarrierConfigManager mCarrierConfigManager;
+
+    @Spy private final Context mContext = ApplicationProvider.getApplicationContext();
+
+    @Before
+    public void setUp() {
+        when(mContext.getSystemService(CarrierConfigManager.class))
+                .thenReturn(mCarrierConfigManager);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(createCarrierConfig());
+        when(mCarrierConfigManager.getConfigForSubId(OTHER_SUB_ID))
+                .thenReturn(createCarrierConfig());
+        TelephonyUtils.invalidateCarrierConfig(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    @Test
+    public void getCarrierConfigs_readOnce() {
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo(SENDER_ID);
+        assertThat(TelephonyUtils.getEntitlementServerUrl(mContext, SUB_ID)).isEqualTo(SERVER_URL);
+        assertThat(TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID)).isTrue();
+
+        verify(mCarrierConfigManager, times(1)).getConfigForSubId(SUB_ID);
+    }
+
+    @Test
+    public void getCarrierConfigs_notLoaded_notCached() {
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(null);
+
+        TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID);
+        TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID);
+
+        verify(mCarrierConfigManager, times(2)).getConfigForSubId(SUB_ID);
+    }
+
+    @Test
+    public void invalidateCarrierConfig_readAgainForTheSubId() {
+        TelephonyUtils.getFcmSenderId(mContext, SUB_ID);
+        TelephonyUtils.getFcmSenderId(mContext, OTHER_SUB_ID);
+
+        TelephonyUtils.invalidateCarrierConfig(SUB_ID);
+        TelephonyUtils.getFcmSenderId(mContext, SUB_ID);
+        TelephonyUtils.getFcmSenderId(mContext, OTHER_SUB_ID);
+
+        verify(mCarrierConfigManager, times(2)).getConfigForSubId(SUB_ID);
+        verify(mCarrierConfigManager, times(1)).getConfigForSubId(OTHER_SUB_ID);
+    }
+
+    @Test
+    public void invalidateCarrierConfig_invalidSubId_readAgainForAll() {
+        TelephonyUtils.getFcmSenderId(mContext, SUB_ID);
+        TelephonyUtils.getFcmSenderId(mContext, OTHER_SUB_ID);
+
+        TelephonyUtils.invalidateCarrierConfig(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        TelephonyUtils.getFcmSenderId(mContext, SUB_ID);
+        TelephonyUtils.getFcmSenderId(mContext, OTHER_SUB_ID);
+
+        verify(mCarrierConfigManager, times(2)).getConfigForSubId(SUB_ID);
+        verify(mCarrierConfigManager, times(2)).getConfigForSubId(OTHER_SUB_ID);
+    }
+
+    private static PersistableBundle createCarrierConfig() {
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING, SENDER_ID);
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_ENTITLEMENT_SERVER_URL_STRING,
+                SERVER_URL);
+        carrierConfig.putBoolean(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL, true);
+        return carrierConfig;
+    }
+}
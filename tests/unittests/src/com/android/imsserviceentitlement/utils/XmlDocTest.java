@@ -18,11 +18,16 @@ package com.android.imsserviceentitlement.utils;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+
 import androidx.test.runner.AndroidJUnit4;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.IOException;
+
 @RunWith(AndroidJUnit4.class)
 public class XmlDocTest {
     // XML sample from vendor A
@@ -111,8 +116,62 @@ public class XmlDocTest {
                     + "</characteristic>"
                     + "</wap-provisioningdoc>";
 
+    // A XML sample with nested characteristics
+    private static final String AUTH_RESPONSE_XML_6 =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"APPLICATION\">"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "<parm name=\"EntitlementStatus\" value=\"0\"/>"
+                    + "<characteristic type=\"EXT\">"
+                    + "<parm name=\"ProvStatus\" value=\"1\"/>"
+                    + "</characteristic>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
+    // A XML sample with both escaped entities and unescaped "&"
+    private static final String AUTH_RESPONSE_XML_7 =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"APPLICATION\">"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "<parm name=\"ServiceFlow_UserData\" value=\""
+                    + "a=&lt;1&gt;&b=&#38;\"/>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
+    // A XML sample with malformed numbers
+    private static final String AUTH_RESPONSE_XML_8 =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"VERS\">"
+                    + "<parm name=\"version\" value=\"1.5\"/>"
+                    + "<parm name=\"validity\" value=\"99999999999\"/>"
+                    + "</characteristic>"
+                    + "<characteristic type=\"APPLICATION\">"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "<parm name=\"EntitlementStatus\" value=\"enabled\"/>"
+                    + "<parm name=\"MessageForIncompatible\" value=\"x99\"/>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
+    private static final String AUTH_RESPONSE_XML_UNTYPED_CHARACTERISTIC =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"VERS\">"
+                    + "<parm name=\"version\" value=\"4\"/>"
+                    + "<characteristic>"
+                    + "<parm name=\"validity\" value=\"172800\"/>"
+                    + "</characteristic>"
+                    + "</characteristic>"
+                    + "<characteristic>"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
     private static final String TOKEN = "kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX";
 
+    @After
+    public void tearDown() {
+        XmlDoc.sUseDomParser = false;
+    }
+
     @Test
     public void parseAuthenticateResponse() {
         XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML);
@@ -164,4 +223,179 @@ public class XmlDocTest {
         assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap2004").get()).isEqualTo("0");
         assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap2005").get()).isEqualTo("1");
     }
+
+    @Test
+    public void parseAuthenticateResponse7() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_7);
+
+        // Note the entities are un-escaped and the bare "&" is kept as is
+        assertThat(xmlDoc.get("APPLICATION", "ServiceFlow_UserData", "ap2004").get())
+                .isEqualTo("a=<1>&b=&");
+    }
+
+    @Test
+    public void get_paramNotIndexed_fallbackToNodesMap() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_2);
+
+        assertThat(xmlDoc.get("APPLICATION", "MessageForIncompatible", "ap2004").get())
+                .isEqualTo("99");
+        assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap9999").isPresent())
+                .isFalse();
+        assertThat(xmlDoc.get("UNKNOWN", "version", null).isPresent()).isFalse();
+    }
+
+    @Test
+    public void getIntAndGetLong_validNumbers() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_2);
+
+        assertThat(xmlDoc.getInt("VERS", "version", null, -1)).isEqualTo(4);
+        assertThat(xmlDoc.getLong("VERS", "validity", null, -1)).isEqualTo(172800);
+        assertThat(xmlDoc.getInt("APPLICATION", "ProvStatus", "ap2004", -1)).isEqualTo(0);
+        assertThat(xmlDoc.getInt("APPLICATION", "MessageForIncompatible", "ap2004", -1))
+                .isEqualTo(99);
+    }
+
+    @Test
+    public void getIntAndGetLong_missingOrMalformed_returnDefault() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_8);
+
+        assertThat(xmlDoc.getInt("VERS", "version", null, -1)).isEqualTo(-1);
+        assertThat(xmlDoc.getInt("VERS", "validity", null, -1)).isEqualTo(-1);
+        assertThat(xmlDoc.getLong("VERS", "validity", null, -1)).isEqualTo(99999999999L);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2004", 2)).isEqualTo(2);
+        assertThat(xmlDoc.getInt("APPLICATION", "MessageForIncompatible", "ap2004", 2))
+                .isEqualTo(2);
+        assertThat(xmlDoc.getLong("TOKEN", "validity", null, 0)).isEqualTo(0);
+    }
+
+    @Test
+    public void fromSnapshot_sameParamsAsParsedDoc() throws Exception {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_2);
+
+        XmlDoc restored = XmlDoc.fromSnapshot(xmlDoc.toSnapshot());
+
+        assertThat(restored.get("TOKEN", "token", null).get()).isEqualTo(TOKEN);
+        assertThat(restored.getInt("VERS", "version", null, -1)).isEqualTo(4);
+        assertThat(restored.get("APPLICATION", "ServiceFlow_UserData", "ap2004").get())
+                .isEqualTo("PostData=U6%2FbQ%2BEP&req_locale=en_US");
+        assertThat(restored.get("APPLICATION", "MessageForIncompatible", "ap2004").get())
+                .isEqualTo("99");
+    }
+
+    @Test
+    public void fromSnapshot_untypedCharacteristic_equalsParsedDoc() throws Exception {
+        for (boolean useDomParser : new boolean[] {false, true}) {
+            XmlDoc.sUseDomParser = useDomParser;
+            XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_UNTYPED_CHARACTERISTIC);
+
+            XmlDoc restored = XmlDoc.fromSnapshot(xmlDoc.toSnapshot());
+
+            assertThat(restored).isEqualTo(xmlDoc);
+            assertThat(restored.getInt("VERS", "validity", null, -1)).isEqualTo(172800);
+        }
+    }
+
+    @Test
+    public void fromSnapshot_malformedSnapshot_throwsIOException() {
+        byte[] snapshot = new XmlDoc(AUTH_RESPONSE_XML_2).toSnapshot();
+        byte[] truncated = new byte[snapshot.length / 2];
+        System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+        byte[] unsupportedVersion = snapshot.clone();
+        unsupportedVersion[3]++;
+
+        assertThrows(IOException.class, () -> XmlDoc.fromSnapshot(truncated));
+        assertThrows(IOException.class, () -> XmlDoc.fromSnapshot(unsupportedVersion));
+    }
+
+    @Test
+    public void builder_sameAsParsedDocument() {
+        XmlDoc xmlDoc =
+                new XmlDoc.Builder()
+                        .addParam("VERS", null, "version", "1")
+                        .addParam("TOKEN", null, "token", "")
+                        .addParam("TOKEN", null, "validity", "0")
+                        .addParam("APPLICATION", "ap2004", "EntitlementStatus", "2")
+                        .build();
+
+        assertThat(xmlDoc).isEqualTo(new XmlDoc(
+                "<wap-provisioningdoc version=\"1.1\">"
+                        + "<characteristic type=\"VERS\">"
+                        + "<parm name=\"version\" value=\"1\"/>"
+                        + "</characteristic>"
+                        + "<characteristic type=\"TOKEN\">"
+                        + "<parm name=\"token\" value=\"\"/>"
+                        + "<parm name=\"validity\" value=\"0\"/>"
+                        + "</characteristic>"
+                        + "<characteristic type=\"APPLICATION\">"
+                        + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                        + "<parm name=\"EntitlementStatus\" value=\"2\"/>"
+                        + "</characteristic>"
+                        + "</wap-provisioningdoc>"));
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2004", -1)).isEqualTo(2);
+    }
+
+    @Test
+    public void getInt_indexedNodes_eachNodeLookedUpSeparately() {
+        XmlDoc xmlDoc =
+                new XmlDoc.Builder()
+                        .addParam("VERS", null, "validity", "10")
+                        .addParam("TOKEN", null, "validity", "20")
+                        .addParam("APPLICATION", "ap2003", "EntitlementStatus", "0")
+                        .addParam("APPLICATION", "ap2004", "EntitlementStatus", "1")
+                        .addParam("APPLICATION", "ap2005", "EntitlementStatus", "2")
+                        .build();
+
+        assertThat(xmlDoc.getInt("VERS", "validity", null, -1)).isEqualTo(10);
+        assertThat(xmlDoc.getInt("TOKEN", "validity", null, -1)).isEqualTo(20);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2003", -1)).isEqualTo(0);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2004", -1)).isEqualTo(1);
+        assertThat(xmlDoc.getInt("APPLICATION", "EntitlementStatus", "ap2005", -1)).isEqualTo(2);
+        assertThat(xmlDoc.get("APPLICATION", "AppID", "ap2005").get()).isEqualTo("ap2005");
+    }
+
+    @Test
+    public void parseNestedCharacteristics_parmBelongsToAllEnclosingCharacteristics() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_6);
+
+        assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap2004").get()).isEqualTo("0");
+        assertThat(xmlDoc.get("APPLICATION", "ProvStatus", "ap2004").get()).isEqualTo("1");
+        assertThat(xmlDoc.get("EXT", "ProvStatus", null).get()).isEqualTo("1");
+        assertThat(xmlDoc.get("EXT", "EntitlementStatus", null).isPresent()).isFalse();
+    }
+
+    @Test
+    public void parseWithDomParser_sameResultAsPullParser() {
+        String[] responses = {
+            AUTH_RESPONSE_XML,
+            AUTH_RESPONSE_XML_2,
+            AUTH_RESPONSE_XML_3,
+            AUTH_RESPONSE_XML_4,
+            AUTH_RESPONSE_XML_5,
+            AUTH_RESPONSE_XML_6,
+            AUTH_RESPONSE_XML_7
+        };
+        String[][] queries = {
+            {"VERS", "version", null},
+            {"VERS", "validity", null},
+            {"TOKEN", "token", null},
+            {"APPLICATION", "EntitlementStatus", "ap2004"},
+            {"APPLICATION", "EntitlementStatus", "ap2005"},
+            {"APPLICATION", "ProvStatus", "ap2004"},
+            {"APPLICATION", "ServiceFlow_URL", "ap2004"},
+            {"APPLICATION", "ServiceFlow_UserData", "ap2004"},
+            {"EXT", "ProvStatus", null},
+        };
+
+        for (String response : responses) {
+            XmlDoc.sUseDomParser = false;
+            XmlDoc pullDoc = new XmlDoc(response);
+            XmlDoc.sUseDomParser = true;
+            XmlDoc domDoc = new XmlDoc(response);
+
+            for (String[] query : queries) {
+                assertThat(pullDoc.get(query[0], query[1], query[2]))
+                        .isEqualTo(domDoc.get(query[0], query[1], query[2]));
+            }
+        }
+    }
 }